@@ -14,6 +14,17 @@ repositories {
     }
 }
 
+val jmh by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+    // the benchmarks use the same fixtures as the tests
+    resources.srcDir("src/test/resources")
+}
+
+val jmhImplementation by configurations.getting {
+    extendsFrom(configurations.implementation.get())
+}
+
 dependencies {
     implementation("ca.uhn.hapi.fhir", "org.hl7.fhir.validation", "6.5.18")
 
@@ -34,6 +45,10 @@ dependencies {
 
     // Testing stuff
     testImplementation("org.junit.jupiter", "junit-jupiter", "5.9.3")
+
+    // Benchmarks
+    jmhImplementation("org.openjdk.jmh", "jmh-core", "1.37")
+    "jmhAnnotationProcessor"("org.openjdk.jmh", "jmh-generator-annprocess", "1.37")
 }
 
 java {
@@ -60,7 +75,7 @@ tasks {
 }
 
 tasks.test {
-    environment(mapOf("DISABLE_TX" to "true"))
+    environment(mapOf("DISABLE_TX" to "true", "VALIDATOR_POOL_SIZE" to "2"))
     maxHeapSize = "6144m"
     useJUnitPlatform()
     testLogging {
@@ -74,6 +89,18 @@ tasks.test {
     }
 }
 
+tasks.register<JavaExec>("jmh") {
+    group = "verification"
+    description = "Runs the JMH benchmarks. Pass JMH options with -PjmhArgs=\"...\"."
+
+    classpath = jmh.runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    workingDir = projectDir
+    // run offline against the bundled IGs, and measure validation rather than cache lookups
+    environment(mapOf("DISABLE_TX" to "true", "VALIDATION_CACHE_SIZE" to "0"))
+    args((project.findProperty("jmhArgs") as String?)?.split(" ") ?: listOf<String>())
+}
+
 val testCoverage by tasks.registering {
     group = "verification"
     description = "Runs the unit tests with coverage."
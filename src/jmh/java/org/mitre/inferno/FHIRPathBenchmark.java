@@ -0,0 +1,54 @@
+package org.mitre.inferno;
+
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures evaluating an expression that has been parsed before ("warm") against one that has
+ * not ("cold"). Both expressions return the same result.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FHIRPathBenchmark {
+  private static final String EXPRESSION = "Patient.name.where(given.exists()).given";
+
+  private FHIRPathEvaluator evaluator;
+  private Resource patient;
+  private long counter;
+
+  /**
+   * Creates the evaluator and parses the Patient fixture.
+   *
+   * @throws Exception if the fixture cannot be parsed
+   */
+  @Setup
+  public void setUp() throws Exception {
+    evaluator = new FHIRPathEvaluator();
+    patient = new org.hl7.fhir.r4.formats.JsonParser().parse(Fixtures.load("patient_fixture.json"));
+  }
+
+  @Benchmark
+  public String warm() {
+    return evaluator.evaluateToString(patient, EXPRESSION);
+  }
+
+  @Benchmark
+  public String cold() {
+    // a filter that never matches makes each expression new without changing the result
+    return evaluator.evaluateToString(patient, EXPRESSION + ".where($this != '" + counter++ + "')");
+  }
+}
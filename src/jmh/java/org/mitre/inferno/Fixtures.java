@@ -0,0 +1,16 @@
+package org.mitre.inferno;
+
+import java.io.IOException;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Loads the test fixtures that the benchmarks share with the unit tests.
+ */
+final class Fixtures {
+  private Fixtures() {
+  }
+
+  static byte[] load(String fileName) throws IOException {
+    return IOUtils.toByteArray(Fixtures.class.getClassLoader().getResource(fileName));
+  }
+}
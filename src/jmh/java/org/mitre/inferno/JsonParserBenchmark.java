@@ -0,0 +1,61 @@
+package org.mitre.inferno;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures parsing and composing BackboneElements, which go through the parser's type dispatch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class JsonParserBenchmark {
+  private static final String COMMUNICATION = "{"
+      + "\"language\":{\"coding\":[{"
+      + "\"system\":\"urn:ietf:bcp:47\","
+      + "\"code\":\"en-US\","
+      + "\"display\":\"English (United States)\""
+      + "}]},"
+      + "\"preferred\":true"
+      + "}";
+
+  private JsonParser parser;
+  private Patient.PatientCommunicationComponent communication;
+
+  /**
+   * Creates the parser and the element to compose.
+   *
+   * @throws IOException if the element cannot be parsed
+   */
+  @Setup
+  public void setUp() throws IOException {
+    parser = new JsonParser();
+    communication = (Patient.PatientCommunicationComponent)
+        parser.parse(COMMUNICATION, "Patient.communication");
+  }
+
+  @Benchmark
+  public Base parseBackboneElement() throws IOException {
+    return parser.parse(COMMUNICATION, "Patient.communication");
+  }
+
+  @Benchmark
+  public String composeBackboneElement() throws IOException {
+    return parser.composeBase(communication);
+  }
+}
@@ -0,0 +1,111 @@
+package org.mitre.inferno;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.mitre.inferno.rest.IgResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reading IG packages and loading them into the validator.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class PackageBenchmark {
+  private static final String US_CORE = "igs/hl7.fhir.us.core-3.1.1.tgz";
+
+  /**
+   * The bundled US Core package, as bytes and unpacked.
+   */
+  @State(Scope.Benchmark)
+  public static class UsCore {
+    byte[] content;
+    NpmPackage npm;
+
+    /**
+     * Reads the package.
+     *
+     * @throws IOException if the package cannot be read
+     */
+    @Setup
+    public void setUp() throws IOException {
+      content = Files.readAllBytes(Paths.get(US_CORE));
+      npm = NpmPackage.fromPackage(new ByteArrayInputStream(content));
+    }
+  }
+
+  /**
+   * A validator with only the bundled IGs loaded, recreated before every iteration so that each
+   * load starts from the same content.
+   */
+  @State(Scope.Benchmark)
+  public static class FreshValidator {
+    Validator validator;
+    byte[] content;
+
+    /**
+     * Reads the package to load.
+     *
+     * @throws IOException if the package cannot be read
+     */
+    @Setup(Level.Trial)
+    public void readPackage() throws IOException {
+      content = Fixtures.load("hl7.fhir.au.base.tgz");
+    }
+
+    /**
+     * Creates the validator.
+     *
+     * @throws Exception if the validator cannot be created
+     */
+    @Setup(Level.Iteration)
+    public void createValidator() throws Exception {
+      validator = new Validator("./igs", true);
+    }
+
+    /**
+     * Stops the validator's background threads.
+     */
+    @TearDown(Level.Iteration)
+    public void closeValidator() {
+      validator.close();
+    }
+  }
+
+  @Benchmark
+  @Warmup(iterations = 3, time = 5)
+  @Measurement(iterations = 5, time = 5)
+  public NpmPackage readUsCore(UsCore usCore) throws IOException {
+    return NpmPackage.fromPackage(new ByteArrayInputStream(usCore.content));
+  }
+
+  @Benchmark
+  @Warmup(iterations = 3, time = 5)
+  @Measurement(iterations = 5, time = 5)
+  public IgResponse igResponseFromPackage(UsCore usCore) throws IOException {
+    return IgResponse.fromPackage(usCore.npm);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 2)
+  @Measurement(iterations = 5)
+  public IgResponse loadPackage(FreshValidator fresh) throws Exception {
+    return fresh.validator.loadPackage(fresh.content);
+  }
+}
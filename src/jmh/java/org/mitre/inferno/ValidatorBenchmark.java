@@ -0,0 +1,85 @@
+package org.mitre.inferno;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.formats.JsonParser;
+import org.hl7.fhir.r4.formats.XmlParser;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures validating the US Core Patient example on its own ("small") and as 100 entries of a
+ * collection Bundle ("large"), in JSON and XML.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class ValidatorBenchmark {
+  private static final int LARGE_ENTRIES = 100;
+
+  @Param({"small", "large"})
+  public String size;
+
+  @Param({"json", "xml"})
+  public String format;
+
+  private Validator validator;
+  private byte[] resource;
+
+  /**
+   * Loads the bundled IGs and prepares the resource to validate.
+   *
+   * @throws Exception if the validator cannot be created
+   */
+  @Setup
+  public void setUp() throws Exception {
+    validator = new Validator("./igs", true);
+    Patient patient =
+        (Patient) new JsonParser().parse(Fixtures.load("us_core_patient_example.json"));
+    Resource target = patient;
+    if ("large".equals(size)) {
+      Bundle bundle = new Bundle().setType(Bundle.BundleType.COLLECTION);
+      for (int i = 0; i < LARGE_ENTRIES; i++) {
+        Patient entry = patient.copy();
+        entry.setId("example-" + i);
+        bundle.addEntry()
+            .setFullUrl("http://example.org/fhir/Patient/example-" + i)
+            .setResource(entry);
+      }
+      target = bundle;
+    }
+    resource = "xml".equals(format)
+        ? new XmlParser().composeBytes(target)
+        : new JsonParser().composeBytes(target);
+  }
+
+  /**
+   * Stops the validator's background threads.
+   */
+  @TearDown
+  public void tearDown() {
+    validator.close();
+  }
+
+  @Benchmark
+  public OperationOutcome validate() {
+    return validator.validate(resource, Collections.emptyList());
+  }
+}
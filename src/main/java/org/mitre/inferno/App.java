@@ -1,6 +1,10 @@
 package org.mitre.inferno;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import org.mitre.inferno.rest.Endpoints;
 import org.mitre.inferno.utils.SparkUtils;
 import org.slf4j.Logger;
@@ -22,7 +26,12 @@ public class App {
     if (args.length > 0) {
       if (args[0].equals("prepare")) {
         logger.info("Initializing Validator App...");
-        initializeValidator();
+        Validator validator = initializeValidator();
+        String warmUpDir = System.getenv("TX_WARMUP_DIR");
+        if (warmUpDir != null) {
+          warmUpTerminologyCache(validator, warmUpDir);
+        }
+        writeSnapshot(validator);
       } else {
         logger.warn("Argument " + args[0] + " is unknown");
         startApp();
@@ -46,6 +55,42 @@ public class App {
     }
   }
 
+  /**
+   * Validates every resource in the given directory so that the terminology answers they need
+   * end up in the terminology cache (see TX_CACHE_DIR), ready to be used without a network.
+   *
+   * @param validator the validator to warm up
+   * @param dir a directory of JSON or XML FHIR resources
+   */
+  static void warmUpTerminologyCache(Validator validator, String dir) {
+    Logger logger = LoggerFactory.getLogger(App.class);
+    File[] files = new File(dir).listFiles((d, name) -> name.endsWith(".json")
+        || name.endsWith(".xml"));
+    if (files == null) {
+      logger.warn("Terminology warm-up directory " + dir + " does not exist");
+      return;
+    }
+    Arrays.sort(files);
+    for (File file : files) {
+      try {
+        validator.validate(Files.readAllBytes(file.toPath()), new ArrayList<>());
+      } catch (IOException e) {
+        logger.warn("Could not read " + file + " for terminology warm-up", e);
+      }
+    }
+    logger.info("Warmed up the terminology cache with " + files.length + " resources");
+  }
+
+  private static void writeSnapshot(Validator validator) {
+    Logger logger = LoggerFactory.getLogger(App.class);
+    try {
+      validator.writeSnapshot();
+    } catch (IOException e) {
+      logger.error("There was an error writing the validator snapshot:", e);
+      System.exit(1);
+    }
+  }
+
   private static FHIRPathEvaluator initializePathEvaluator() {
     Logger logger = LoggerFactory.getLogger(App.class);
     try {
@@ -0,0 +1,257 @@
+package org.mitre.inferno;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.model.Bundle;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.CapabilityStatement;
+import org.hl7.fhir.r5.model.Parameters;
+import org.hl7.fhir.r5.model.TerminologyCapabilities;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.r5.terminologies.expansion.ValueSetExpansionOutcome;
+import org.hl7.fhir.r5.terminologies.client.ITerminologyClient;
+import org.hl7.fhir.r5.terminologies.utilities.TerminologyCache;
+import org.hl7.fhir.r5.terminologies.utilities.ValidationResult;
+import org.hl7.fhir.r5.utils.client.network.ClientHeaders;
+import org.hl7.fhir.utilities.FhirPublication;
+import org.hl7.fhir.utilities.ToolingClientLogger;
+import org.hl7.fhir.utilities.http.HTTPHeader;
+
+/**
+ * Stands in for a terminology server that is no longer reachable, using what an earlier run
+ * saved in the terminology cache.
+ * <p>
+ * The validation engine only looks a code up in the cache once a terminology server has told it
+ * that the code's system is supported, so without a server cached answers are never used. This
+ * client replays the CapabilityStatement and TerminologyCapabilities that the server the cache was
+ * filled from sent, so the engine accepts it as it accepted the server, and goes on to find the
+ * cached answers. Anything that isn't in the cache fails as a server error.
+ * </p>
+ */
+class CachedTerminologyClient implements ITerminologyClient {
+  private final String address;
+  private final CapabilityStatement statement;
+  private final TerminologyCapabilities capabilities;
+  private ToolingClientLogger logger;
+  private int retryCount;
+  private String userAgent;
+
+  /**
+   * Creates a client for a server whose capabilities are in the cache.
+   *
+   * @param address the address of the server the cache was filled from
+   * @param cache the terminology cache
+   * @throws IOException if the cache holds nothing from that server
+   */
+  CachedTerminologyClient(String address, TerminologyCache cache) throws IOException {
+    if (!cache.hasCapabilityStatement(address) || !cache.hasTerminologyCapabilities(address)) {
+      throw new IOException("The terminology cache in " + cache.getFolder()
+          + " holds no capabilities of " + address + "; fill it again with prepare");
+    }
+    this.address = address;
+    this.statement = cache.getCapabilityStatement(address);
+    this.capabilities = cache.getTerminologyCapabilities(address);
+  }
+
+  /**
+   * Opens a terminology cache that is only read, so answers worked out while running without a
+   * server, including failures, are kept in memory and never replace what the server said.
+   *
+   * @param folder the cache directory
+   * @return the cache
+   * @throws IOException if the cache cannot be read
+   */
+  static TerminologyCache readOnlyCache(String folder) throws IOException {
+    return new TerminologyCache(new Object(), folder) {
+      @Override
+      public void cacheValidation(CacheToken token, ValidationResult res, boolean persistent) {
+        super.cacheValidation(token, res, false);
+      }
+
+      @Override
+      public void cacheExpansion(
+          CacheToken token, ValueSetExpansionOutcome res, boolean persistent) {
+        super.cacheExpansion(token, res, false);
+      }
+
+      @Override
+      public void cacheSubsumes(CacheToken token, Boolean b, boolean persistent) {
+        super.cacheSubsumes(token, b, false);
+      }
+    };
+  }
+
+  @Override
+  public CapabilityStatement getCapabilitiesStatement() {
+    return statement;
+  }
+
+  @Override
+  public CapabilityStatement getCapabilitiesStatementQuick() {
+    return statement;
+  }
+
+  @Override
+  public TerminologyCapabilities getTerminologyCapabilities() {
+    return capabilities;
+  }
+
+  private FHIRException notCached(String operation) {
+    return new FHIRException("The terminology cache has no answer for this " + operation
+        + ", and there is no terminology server to ask");
+  }
+
+  @Override
+  public ValueSet expandValueset(ValueSet vs, Parameters p) {
+    throw notCached("expansion");
+  }
+
+  @Override
+  public Parameters validateCS(Parameters pin) {
+    throw notCached("code");
+  }
+
+  @Override
+  public Parameters validateVS(Parameters pin) {
+    throw notCached("code");
+  }
+
+  @Override
+  public Parameters subsumes(Parameters pin) {
+    throw notCached("subsumption test");
+  }
+
+  @Override
+  public Parameters lookupCode(Map<String, String> params) {
+    throw notCached("lookup");
+  }
+
+  @Override
+  public Parameters lookupCode(Parameters params) {
+    throw notCached("lookup");
+  }
+
+  @Override
+  public Parameters translate(Parameters params) {
+    throw notCached("translation");
+  }
+
+  @Override
+  public Bundle validateBatch(Bundle batch) {
+    throw notCached("batch of codes");
+  }
+
+  @Override
+  public CanonicalResource read(String type, String id) {
+    throw notCached("read");
+  }
+
+  @Override
+  public Bundle search(String type, String criteria) {
+    throw notCached("search");
+  }
+
+  @Override
+  public EnumSet<FhirPublication> supportableVersions() {
+    return EnumSet.of(FhirPublication.R4);
+  }
+
+  @Override
+  public void setAllowedVersions(EnumSet<FhirPublication> versions) {
+  }
+
+  @Override
+  public EnumSet<FhirPublication> getAllowedVersions() {
+    return supportableVersions();
+  }
+
+  @Override
+  public FhirPublication getActualVersion() {
+    return FhirPublication.R4;
+  }
+
+  @Override
+  public String getId() {
+    return "cache";
+  }
+
+  @Override
+  public String getAddress() {
+    return address;
+  }
+
+  @Override
+  public String getServerVersion() {
+    return capabilities.getSoftware().getVersion();
+  }
+
+  @Override
+  public ITerminologyClient setTimeoutFactor(int factor) {
+    return this;
+  }
+
+  @Override
+  public ToolingClientLogger getLogger() {
+    return logger;
+  }
+
+  @Override
+  public ITerminologyClient setLogger(ToolingClientLogger logger) {
+    this.logger = logger;
+    return this;
+  }
+
+  @Override
+  public int getRetryCount() {
+    return retryCount;
+  }
+
+  @Override
+  public ITerminologyClient setRetryCount(int retries) {
+    this.retryCount = retries;
+    return this;
+  }
+
+  @Override
+  public Iterable<HTTPHeader> getClientHeaders() {
+    return Collections.emptyList();
+  }
+
+  @Override
+  public ITerminologyClient setClientHeaders(ClientHeaders clientHeaders) {
+    return this;
+  }
+
+  @Override
+  public ITerminologyClient setUserAgent(String userAgent) {
+    this.userAgent = userAgent;
+    return this;
+  }
+
+  @Override
+  public ITerminologyClient setAcceptLanguage(String lang) {
+    return this;
+  }
+
+  @Override
+  public ITerminologyClient setContentLanguage(String lang) {
+    return this;
+  }
+
+  @Override
+  public String getUserAgent() {
+    return userAgent;
+  }
+
+  @Override
+  public int getUseCount() {
+    return 0;
+  }
+
+  @Override
+  public void setConversionLogger(ITerminologyConversionLogger logger) {
+  }
+}
@@ -1,33 +1,178 @@
 package org.mitre.inferno;
 
+import com.google.gson.Gson;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.r4.context.SimpleWorkerContext;
-import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.fhirpath.ExpressionNode;
 import org.hl7.fhir.r4.fhirpath.FHIRPathEngine;
+import org.hl7.fhir.r4.model.Base;
+import org.mitre.inferno.utils.BoundedCache;
+import org.mitre.inferno.utils.EnvUtils;
 
 public class FHIRPathEvaluator extends FHIRPathEngine {
+  private static final Gson GSON = new Gson();
+  private static final byte[] TYPE_PREFIX = "{\"type\":\"".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] ELEMENT_PREFIX = "\",\"element\":".getBytes(StandardCharsets.UTF_8);
 
+  private final BoundedCache<String, ExpressionNode> expressionCache;
+
+  /**
+   * Creates a FHIRPath evaluator that keeps up to FHIRPATH_CACHE_SIZE (default 1000) parsed
+   * expressions for reuse.
+   *
+   * @throws IOException if the worker context cannot be created
+   */
   public FHIRPathEvaluator() throws IOException {
     super(new SimpleWorkerContext());
+    expressionCache = new BoundedCache<>(EnvUtils.getInt("FHIRPATH_CACHE_SIZE", 1000), 0);
   }
 
   @Override
   public String evaluateToString(Base base, String path) {
-    List<Base> result = this.evaluate(base, path);
-    return '['
-        + result.stream().map(this::baseToJson).collect(Collectors.joining(","))
-        + ']';
-  }
-
-  private String baseToJson(Base item) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
     try {
-      String repr = new JsonParser().composeBase(item);
-      return String.format("{\"type\":\"%s\",\"element\":%s}", item.fhirType(), repr);
+      evaluateToStream(base, path, bytes);
     } catch (IOException e) {
       throw new FHIRException("Failed to convert base to JSON", e);
     }
+    return bytes.toString(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Evaluates an expression and writes the result to a stream as a JSON array of
+   * {"type": ..., "element": ...} objects. The expression is evaluated in full before anything is
+   * written, so an invalid expression leaves the stream untouched.
+   *
+   * @param base the element to evaluate the expression against
+   * @param path the FHIRPath expression
+   * @param stream the stream to write the UTF-8 encoded result to
+   * @throws IOException if the result could not be written
+   * @throws FHIRException if the expression is invalid or cannot be evaluated
+   */
+  public void evaluateToStream(Base base, String path, OutputStream stream) throws IOException {
+    writeResult(evaluate(base, path), stream);
+  }
+
+  /**
+   * Evaluates several expressions against the same element, evaluating each distinct expression
+   * once.
+   *
+   * @param base the element to evaluate the expressions against
+   * @param paths the FHIRPath expressions
+   * @return the result of each distinct expression, in the order the expressions were given
+   * @throws FHIRException if any expression is invalid or cannot be evaluated
+   */
+  public Map<String, List<Base>> evaluateAll(Base base, List<String> paths) throws FHIRException {
+    Map<String, List<Base>> byPath = new LinkedHashMap<>();
+    for (String path : paths) {
+      if (!byPath.containsKey(path)) {
+        byPath.put(path, evaluate(base, path));
+      }
+    }
+    return byPath;
+  }
+
+  /**
+   * Writes the results of several expressions to a stream as a JSON object, keyed by expression,
+   * whose values are written as by {@link #writeResult(List, OutputStream)}. Every result is
+   * checked before anything is written, so results that can't be written leave the stream
+   * untouched.
+   *
+   * @param results the result of each expression
+   * @param stream the stream to write the UTF-8 encoded results to
+   * @throws IOException if the results could not be written
+   * @throws IllegalArgumentException if a result holds an element that can't be serialized
+   */
+  public static void writeResults(Map<String, List<Base>> results, OutputStream stream)
+      throws IOException {
+    results.values().forEach(FHIRPathEvaluator::checkWritable);
+    stream.write('{');
+    boolean first = true;
+    for (Map.Entry<String, List<Base>> result : results.entrySet()) {
+      if (!first) {
+        stream.write(',');
+      }
+      first = false;
+      stream.write(GSON.toJson(result.getKey()).getBytes(StandardCharsets.UTF_8));
+      stream.write(':');
+      writeChecked(result.getValue(), stream);
+    }
+    stream.write('}');
+  }
+
+  /**
+   * Writes an evaluation result to a stream as a JSON array of {"type": ..., "element": ...}
+   * objects. The result is checked before anything is written, so a result that can't be written
+   * leaves the stream untouched.
+   *
+   * @param result the result of an evaluation
+   * @param stream the stream to write the UTF-8 encoded result to
+   * @throws IOException if the result could not be written
+   * @throws IllegalArgumentException if the result holds an element that can't be serialized
+   */
+  public static void writeResult(List<Base> result, OutputStream stream) throws IOException {
+    checkWritable(result);
+    writeChecked(result, stream);
   }
+
+  private static void checkWritable(List<Base> result) {
+    result.forEach(JsonParser::checkComposable);
+  }
+
+  private static void writeChecked(List<Base> result, OutputStream stream) throws IOException {
+    JsonParser composer = new JsonParser();
+    stream.write('[');
+    for (int i = 0; i < result.size(); i++) {
+      Base item = result.get(i);
+      if (i > 0) {
+        stream.write(',');
+      }
+      stream.write(TYPE_PREFIX);
+      stream.write(item.fhirType().getBytes(StandardCharsets.UTF_8));
+      stream.write(ELEMENT_PREFIX);
+      composer.composeBase(item, stream);
+      stream.write('}');
+    }
+    stream.write(']');
+  }
+
+  /**
+   * Evaluates an expression, reusing its parsed form if it has been evaluated before.
+   *
+   * @param base the element to evaluate the expression against
+   * @param path the FHIRPath expression
+   * @return the result of the evaluation
+   * @throws FHIRException if the expression is invalid or cannot be evaluated
+   */
+  @Override
+  public List<Base> evaluate(Base base, String path) throws FHIRException {
+    return evaluate(base, parseCached(path));
+  }
+
+  /**
+   * Summarizes the parsed expression cache.
+   *
+   * @return a Map of statistic name to value
+   */
+  public Map<String, Long> getExpressionCacheStats() {
+    return expressionCache.getStats();
+  }
+
+  private ExpressionNode parseCached(String path) {
+    ExpressionNode expression = expressionCache.get(path);
+    if (expression == null) {
+      // parsed trees are only read during evaluation, so one tree can serve concurrent requests
+      expression = parse(path);
+      expressionCache.put(path, expression);
+    }
+    return expression;
+  }
+
 }
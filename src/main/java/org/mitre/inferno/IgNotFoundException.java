@@ -0,0 +1,11 @@
+package org.mitre.inferno;
+
+/**
+ * Thrown when an IG package cannot be found in the package cache or on the package servers.
+ */
+public class IgNotFoundException extends RuntimeException {
+
+  public IgNotFoundException(String message) {
+    super(message);
+  }
+}
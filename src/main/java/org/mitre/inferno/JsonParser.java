@@ -5,12 +5,19 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.hl7.fhir.r4.formats.JsonCreatorCanonical;
 import org.hl7.fhir.r4.formats.JsonCreatorDirect;
 import org.hl7.fhir.r4.model.BackboneElement;
@@ -19,6 +26,22 @@ import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.Type;
 
 public class JsonParser extends org.hl7.fhir.r4.formats.JsonParser {
+  private static final Gson GSON = new Gson();
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+  private static final MethodType PARSE_TYPE =
+      MethodType.methodType(Object.class, JsonParser.class, JsonObject.class, Object.class);
+  private static final MethodType COMPOSE_TYPE =
+      MethodType.methodType(void.class, JsonParser.class, String.class, Object.class);
+
+  private static final Set<String> JSON_LITERAL_PRIMITIVES =
+      Set.of("boolean", "integer", "decimal", "unsignedInt", "positiveInt");
+  private static final Set<String> JSON_STRING_PRIMITIVES = Set.of("string", "uri", "url",
+      "canonical", "base64Binary", "instant", "date", "dateTime", "time", "code", "oid", "id",
+      "markdown", "uuid");
+
+  // BackboneElement parse/compose methods, resolved once per type path/class on first use
+  private static final Map<String, MethodHandle> PARSE_HANDLES = new ConcurrentHashMap<>();
+  private static final Map<Class<?>, MethodHandle> COMPOSE_HANDLES = new ConcurrentHashMap<>();
 
   /**
    * Parses the given string into an R4 FHIR model class. Supports all complex datatypes
@@ -53,63 +76,71 @@ public class JsonParser extends org.hl7.fhir.r4.formats.JsonParser {
    * @throws IOException if there was an error serializing the input
    */
   public String composeBase(Base item) throws IOException {
-    String type = item.fhirType();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    composeBase(item, bytes);
+    return bytes.toString(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes the JSON representation of the given Base element to a stream, as UTF-8. The stream
+   * is flushed but not closed.
+   *
+   * @param item the element to serialize
+   * @param stream the stream to write to
+   * @throws IOException if there was an error serializing the input
+   */
+  public void composeBase(Base item, OutputStream stream) throws IOException {
+    checkComposable(item);
     if (item.isPrimitive()) {
-      return composePrimitive(item);
+      stream.write(composePrimitive(item).getBytes(StandardCharsets.UTF_8));
     } else if (item.isResource()) {
-      return composeString((Resource) item);
+      compose(stream, (Resource) item);
     } else if (item instanceof Type) {
-      return composeString((Type) item, type);
-    } else if (item instanceof BackboneElement) {
-      return composeBackboneElement((BackboneElement) item);
+      stream.write(composeString((Type) item, item.fhirType()).getBytes(StandardCharsets.UTF_8));
     } else {
+      composeBackboneElement((BackboneElement) item, stream);
+    }
+  }
+
+  /**
+   * Checks that {@link #composeBase(Base, OutputStream)} can write the given element, without
+   * writing anything.
+   *
+   * @param item the element to check
+   * @throws IllegalArgumentException if the element's type cannot be serialized
+   */
+  public static void checkComposable(Base item) {
+    String type = item.fhirType();
+    if (item.isPrimitive()) {
+      if (!JSON_LITERAL_PRIMITIVES.contains(type) && !JSON_STRING_PRIMITIVES.contains(type)) {
+        throw new IllegalArgumentException("Unexpected primitive type '" + type + "'.");
+      }
+    } else if (item instanceof BackboneElement) {
+      COMPOSE_HANDLES.computeIfAbsent(item.getClass(), JsonParser::findComposeHandle);
+    } else if (!item.isResource() && !(item instanceof Type)) {
       throw new IllegalArgumentException("Unsupported type '" + type + "'.");
     }
   }
 
   private String composePrimitive(Base primitive) {
-    String type = primitive.fhirType();
     String value = primitive.primitiveValue();
-    switch (type) {
-      case "boolean":
-      case "integer":
-      case "decimal":
-      case "unsignedInt":
-      case "positiveInt":
-        // convert to JSON boolean/number
-        return value;
-      case "string":
-      case "uri":
-      case "url":
-      case "canonical":
-      case "base64Binary":
-      case "instant":
-      case "date":
-      case "dateTime":
-      case "time":
-      case "code":
-      case "oid":
-      case "id":
-      case "markdown":
-      case "uuid":
-        // convert to JSON string
-        return new Gson().toJson(value);
-      default:
-        throw new IllegalArgumentException("Unexpected primitive type '" + type + "'.");
-    }
+    // convert to JSON boolean/number, or string
+    return JSON_LITERAL_PRIMITIVES.contains(primitive.fhirType()) ? value : GSON.toJson(value);
   }
 
   private Base parseBackboneElement(JsonObject json, String type) {
     try {
-      return (Base) getParseMethod(type).invoke(this, json, null);
-    } catch (Exception e) {
+      Object element = PARSE_HANDLES.computeIfAbsent(type, JsonParser::findParseHandle)
+          .invokeExact(this, json, (Object) null);
+      return (Base) element;
+    } catch (Throwable e) {
       throw new RuntimeException("Failed to parse BackboneElement", e);
     }
   }
 
-  private String composeBackboneElement(BackboneElement element) throws IOException {
-    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-    OutputStreamWriter osw = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+  private void composeBackboneElement(BackboneElement element, OutputStream stream)
+      throws IOException {
+    OutputStreamWriter osw = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
     if (style == OutputStyle.CANONICAL) {
       json = new JsonCreatorCanonical(osw);
     } else {
@@ -118,30 +149,51 @@ public class JsonParser extends org.hl7.fhir.r4.formats.JsonParser {
     }
     json.setIndent(style == OutputStyle.PRETTY ? "  " : "");
     try {
-      getComposeMethod(element).invoke(this, null, element);
-    } catch (Exception e) {
+      COMPOSE_HANDLES.computeIfAbsent(element.getClass(), JsonParser::findComposeHandle)
+          .invokeExact(this, (String) null, (Object) element);
+    } catch (Throwable e) {
       throw new RuntimeException("Failed to compose BackboneElement", e);
     } finally {
       json.finish();
       osw.flush();
     }
-    return bytes.toString();
   }
 
-  private Method getParseMethod(String path) throws ClassNotFoundException, NoSuchMethodException {
-    Class<?> elementClass = getModelClassForPath(path);
-    Class<?> modelClass = getModelClass(path.split("\\.")[0]);
-    String methodName = "parse" + getBackboneElementName(elementClass);
-    return getClass().getSuperclass().getDeclaredMethod(methodName, JsonObject.class, modelClass);
+  /**
+   * Looks up the superclass method that parses the BackboneElement at the given path, e.g.
+   * parsePatientContactComponent for "Patient.contact", as a handle of type
+   * (JsonParser, JsonObject, Object)Object.
+   */
+  private static MethodHandle findParseHandle(String path) {
+    try {
+      Class<?> elementClass = getModelClassForPath(path);
+      Class<?> modelClass = getModelClass(path.split("\\.")[0]);
+      String methodName = "parse" + getBackboneElementName(elementClass);
+      Method method = org.hl7.fhir.r4.formats.JsonParser.class
+          .getDeclaredMethod(methodName, JsonObject.class, modelClass);
+      return LOOKUP.unreflect(method).asType(PARSE_TYPE);
+    } catch (Exception e) {
+      throw new IllegalArgumentException("No BackboneElement parser for '" + path + "'", e);
+    }
   }
 
-  private Method getComposeMethod(BackboneElement element) throws NoSuchMethodException {
-    Class<?> elementClass = element.getClass();
-    String methodName = "compose" + getBackboneElementName(elementClass);
-    return getClass().getSuperclass().getDeclaredMethod(methodName, String.class, elementClass);
+  /**
+   * Looks up the superclass method that composes the given BackboneElement class, e.g.
+   * composePatientContactComponent, as a handle of type (JsonParser, String, Object)void.
+   */
+  private static MethodHandle findComposeHandle(Class<?> elementClass) {
+    try {
+      String methodName = "compose" + getBackboneElementName(elementClass);
+      Method method = org.hl7.fhir.r4.formats.JsonParser.class
+          .getDeclaredMethod(methodName, String.class, elementClass);
+      return LOOKUP.unreflect(method).asType(COMPOSE_TYPE);
+    } catch (Exception e) {
+      throw new IllegalArgumentException(
+          "No BackboneElement composer for '" + elementClass.getName() + "'", e);
+    }
   }
 
-  private Class<?> getModelClassForPath(String path) throws ClassNotFoundException {
+  private static Class<?> getModelClassForPath(String path) throws ClassNotFoundException {
     try {
       String[] pathParts = path.split("\\.");
       Class<?> clazz = getModelClass(pathParts[0]);
@@ -160,11 +212,11 @@ public class JsonParser extends org.hl7.fhir.r4.formats.JsonParser {
     }
   }
 
-  private Class<?> getModelClass(String name) throws ClassNotFoundException {
+  private static Class<?> getModelClass(String name) throws ClassNotFoundException {
     return Class.forName("org.hl7.fhir.r4.model." + name);
   }
 
-  private String getBackboneElementName(Class<?> clazz) {
+  private static String getBackboneElementName(Class<?> clazz) {
     Class<?> enclosing = clazz.getEnclosingClass();
     return enclosing.getSimpleName() + clazz.getSimpleName();
   }
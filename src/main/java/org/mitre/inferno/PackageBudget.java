@@ -0,0 +1,166 @@
+package org.mitre.inferno;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the IG packages that may be evicted, and chooses which to evict when there are
+ * more of them, or their content is larger, than the budget allows.
+ * <p>
+ * Packages are evicted least recently used first, where a package is used when one of its
+ * profiles is validated against. Marking a package as used doesn't take a lock, so it can be
+ * done for every validation request.
+ * </p>
+ *
+ * @param <T> the type of package tracked
+ */
+class PackageBudget<T> {
+  private final int maxPackages;
+  private final long maxBytes;
+  private final AtomicLong clock = new AtomicLong();
+  private final Map<String, Entry<T>> entries = new ConcurrentHashMap<>();
+  private final Map<String, Entry<T>> entriesByProfile = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a budget.
+   *
+   * @param maxPackages the most packages to keep, or 0 for no limit
+   * @param maxBytes the largest total content size to keep, or 0 for no limit
+   */
+  PackageBudget(int maxPackages, long maxBytes) {
+    this.maxPackages = Math.max(0, maxPackages);
+    this.maxBytes = Math.max(0, maxBytes);
+  }
+
+  /**
+   * Tells whether there is a budget at all. Without one, packages are never evicted.
+   *
+   * @return true if either limit is set
+   */
+  boolean isEnabled() {
+    return maxPackages > 0 || maxBytes > 0;
+  }
+
+  /**
+   * Starts tracking a package as the most recently used one, replacing any package with the
+   * same key. This does nothing if there is no budget.
+   *
+   * @param key the package's ID and version
+   * @param value the package
+   * @param bytes the size of the package's content
+   * @param profiles the URLs of the package's profiles
+   */
+  synchronized void add(String key, T value, long bytes, Collection<String> profiles) {
+    if (!isEnabled()) {
+      return;
+    }
+    Entry<T> entry = new Entry<>(key, value, Math.max(0, bytes), profiles);
+    entry.lastUsed = clock.incrementAndGet();
+    Entry<T> previous = entries.put(key, entry);
+    if (previous != null) {
+      forget(previous);
+    }
+    for (String profile : profiles) {
+      entriesByProfile.put(profile, entry);
+    }
+  }
+
+  /**
+   * Marks the packages defining the given profiles as used.
+   *
+   * @param profiles profile URLs, optionally followed by "|version"
+   */
+  void touch(Collection<String> profiles) {
+    if (entriesByProfile.isEmpty()) {
+      return;
+    }
+    for (String profile : profiles) {
+      int bar = profile.indexOf('|');
+      Entry<T> entry = entriesByProfile.get(bar >= 0 ? profile.substring(0, bar) : profile);
+      if (entry != null) {
+        entry.lastUsed = clock.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Stops tracking the least recently used packages until the rest fit in the budget. The most
+   * recently used package is always kept, even if it doesn't fit on its own.
+   *
+   * @return the packages that are no longer tracked, least recently used first
+   */
+  synchronized List<T> evict() {
+    List<T> evicted = new ArrayList<>();
+    if (!isEnabled()) {
+      return evicted;
+    }
+    List<Entry<T>> lru = new ArrayList<>(entries.values());
+    lru.sort(Comparator.comparingLong(entry -> entry.lastUsed));
+    long bytes = 0;
+    for (Entry<T> entry : lru) {
+      bytes += entry.bytes;
+    }
+    int count = lru.size();
+    for (int i = 0; i < lru.size() - 1 && overBudget(count, bytes); i++) {
+      Entry<T> entry = lru.get(i);
+      entries.remove(entry.key, entry);
+      forget(entry);
+      evicted.add(entry.value);
+      count--;
+      bytes -= entry.bytes;
+    }
+    return evicted;
+  }
+
+  /**
+   * Counts the packages that are tracked.
+   *
+   * @return the number of packages that may be evicted
+   */
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * Adds up the content size of the packages that are tracked.
+   *
+   * @return the total size in bytes
+   */
+  long bytes() {
+    long bytes = 0;
+    for (Entry<T> entry : entries.values()) {
+      bytes += entry.bytes;
+    }
+    return bytes;
+  }
+
+  private boolean overBudget(int count, long bytes) {
+    return (maxPackages > 0 && count > maxPackages) || (maxBytes > 0 && bytes > maxBytes);
+  }
+
+  private void forget(Entry<T> entry) {
+    for (String profile : entry.profiles) {
+      entriesByProfile.remove(profile, entry);
+    }
+  }
+
+  private static class Entry<T> {
+    private final String key;
+    private final T value;
+    private final long bytes;
+    private final Collection<String> profiles;
+    private volatile long lastUsed;
+
+    private Entry(String key, T value, long bytes, Collection<String> profiles) {
+      this.key = key;
+      this.value = value;
+      this.bytes = bytes;
+      this.profiles = profiles;
+    }
+  }
+}
@@ -0,0 +1,258 @@
+package org.mitre.inferno;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * An index of packages by ID and version, with the versions of each ID kept in semantic version
+ * order.
+ * <p>
+ * Lookups accept an exact version, no version (the latest), a wildcard such as "1.x" or "1.2.*",
+ * or a caret ("^1.2.0") or tilde ("~1.2.0") range, and return the highest matching version.
+ * Readers never block, so lookups stay safe while packages are being added.
+ * </p>
+ *
+ * @param <T> the type of package stored
+ */
+class PackageIndex<T> {
+  /**
+   * Orders versions by their numeric parts, with a pre-release (e.g. "1.0.0-ballot") ordered
+   * before the release it precedes. Parts that aren't numbers are compared as strings, so
+   * versions that aren't semantic versions still have a consistent order.
+   */
+  static final Comparator<String> VERSION_ORDER = PackageIndex::compareVersions;
+
+  private final ConcurrentMap<String, ConcurrentSkipListMap<String, T>> packages =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Adds a package, replacing any package with the same ID and version.
+   *
+   * @param id the package ID
+   * @param version the package version
+   * @param value the package
+   */
+  void put(String id, String version, T value) {
+    packages.computeIfAbsent(id, k -> new ConcurrentSkipListMap<>(VERSION_ORDER))
+        .put(version, value);
+  }
+
+  /**
+   * Removes a package.
+   *
+   * @param id the package ID
+   * @param version the exact package version
+   */
+  void remove(String id, String version) {
+    NavigableMap<String, T> versions = packages.get(id);
+    if (versions != null) {
+      versions.remove(version);
+    }
+  }
+
+  /**
+   * Finds the highest version of a package that matches the given version or range.
+   *
+   * @param id the package ID
+   * @param version an exact version, a wildcard or caret/tilde range, or null for the latest
+   * @return the matching package, or null if there is none
+   */
+  T find(String id, String version) {
+    NavigableMap<String, T> versions = packages.get(id);
+    if (versions == null || versions.isEmpty()) {
+      return null;
+    }
+    if (version == null || version.isEmpty() || "x".equals(version) || "*".equals(version)) {
+      return lastValue(versions);
+    }
+    T exact = versions.get(version);
+    if (exact != null) {
+      return exact;
+    }
+    String[] range = toRange(version);
+    if (range == null) {
+      return null;
+    }
+    return lastValue(versions.subMap(range[0], true, range[1], false));
+  }
+
+  /**
+   * Lists the latest version of every package.
+   *
+   * @return a map of package ID to the latest version of that package
+   */
+  Map<String, T> latest() {
+    Map<String, T> latest = new LinkedHashMap<>();
+    for (Map.Entry<String, ConcurrentSkipListMap<String, T>> e : packages.entrySet()) {
+      T value = lastValue(e.getValue());
+      if (value != null) {
+        latest.put(e.getKey(), value);
+      }
+    }
+    return latest;
+  }
+
+  /**
+   * Lists every version of every package.
+   *
+   * @return the packages, ordered by version within each package ID
+   */
+  List<T> all() {
+    List<T> all = new ArrayList<>();
+    for (ConcurrentSkipListMap<String, T> versions : packages.values()) {
+      all.addAll(versions.values());
+    }
+    return all;
+  }
+
+  private static <T> T lastValue(NavigableMap<String, T> versions) {
+    Map.Entry<String, T> last = versions.lastEntry();
+    return last != null ? last.getValue() : null;
+  }
+
+  /**
+   * Converts a wildcard or caret/tilde range into the lowest version it allows and the version
+   * just past it. The upper bound uses the "-0" pre-release, which comes before any other
+   * pre-release of that version, so pre-releases of the next version are excluded. Both bounds
+   * are in their shortest form, so two-part versions like "1.0" fall inside them too.
+   *
+   * @return the inclusive lower and exclusive upper bound, or null if the version isn't a range
+   */
+  private static String[] toRange(String version) {
+    char operator = version.charAt(0);
+    boolean caret = operator == '^';
+    boolean tilde = operator == '~';
+    String[] parts = (caret || tilde ? version.substring(1) : version).split("\\.");
+    int[] numbers = new int[3];
+    int fixed = 0;
+    for (int i = 0; i < parts.length && i < 3; i++) {
+      if ("x".equalsIgnoreCase(parts[i]) || "*".equals(parts[i])) {
+        break;
+      }
+      try {
+        numbers[i] = Integer.parseInt(parts[i]);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      fixed++;
+    }
+    if (fixed == 0) {
+      return null;
+    }
+    if (!caret && !tilde && fixed == 3) {
+      // a full version that wasn't found exactly
+      return null;
+    }
+    int bump;
+    if (caret) {
+      // the left-most non-zero part may not change
+      bump = 0;
+      while (bump < fixed - 1 && numbers[bump] == 0) {
+        bump++;
+      }
+    } else if (tilde) {
+      bump = fixed > 1 ? 1 : 0;
+    } else {
+      bump = fixed - 1;
+    }
+    int[] next = new int[3];
+    for (int i = 0; i < bump; i++) {
+      next[i] = numbers[i];
+    }
+    next[bump] = numbers[bump] + 1;
+    return new String[] {shortestForm(numbers), shortestForm(next) + "-0"};
+  }
+
+  /**
+   * Writes a version without its trailing zero parts. Versions that only differ in form, like
+   * "1.0" and "1.0.0", are ordered by their text, so the shortest form comes before all of them.
+   */
+  private static String shortestForm(int[] numbers) {
+    int length = numbers.length;
+    while (length > 1 && numbers[length - 1] == 0) {
+      length--;
+    }
+    StringBuilder version = new StringBuilder().append(numbers[0]);
+    for (int i = 1; i < length; i++) {
+      version.append('.').append(numbers[i]);
+    }
+    return version.toString();
+  }
+
+  private static int compareVersions(String a, String b) {
+    String[] releaseA = splitPreRelease(a);
+    String[] releaseB = splitPreRelease(b);
+    int result = compareParts(releaseA[0].split("\\."), releaseB[0].split("\\."), "0");
+    if (result != 0) {
+      return result;
+    }
+    if (releaseA[1] == null || releaseB[1] == null) {
+      // a release comes after its pre-releases
+      result = releaseA[1] == null ? (releaseB[1] == null ? 0 : 1) : -1;
+    } else {
+      result = compareParts(releaseA[1].split("\\."), releaseB[1].split("\\."), null);
+    }
+    // keep versions that only differ in form (e.g. "1.0" and "1.0.0") apart
+    return result != 0 ? result : a.compareTo(b);
+  }
+
+  private static String[] splitPreRelease(String version) {
+    int build = version.indexOf('+');
+    if (build >= 0) {
+      version = version.substring(0, build);
+    }
+    int dash = version.indexOf('-');
+    if (dash < 0) {
+      return new String[] {version, null};
+    }
+    return new String[] {version.substring(0, dash), version.substring(dash + 1)};
+  }
+
+  /**
+   * Compares dot-separated identifiers one by one. Numbers compare numerically and come before
+   * other identifiers. A missing identifier counts as the given filler, or as lower than any
+   * identifier if the filler is null.
+   */
+  private static int compareParts(String[] a, String[] b, String filler) {
+    for (int i = 0; i < Math.max(a.length, b.length); i++) {
+      String partA = i < a.length ? a[i] : filler;
+      String partB = i < b.length ? b[i] : filler;
+      if (partA == null || partB == null) {
+        return partA == null ? -1 : 1;
+      }
+      boolean numericA = isNumber(partA);
+      boolean numericB = isNumber(partB);
+      int result;
+      if (numericA && numericB) {
+        result = Long.compare(Long.parseLong(partA), Long.parseLong(partB));
+      } else if (numericA || numericB) {
+        result = numericA ? -1 : 1;
+      } else {
+        result = partA.compareTo(partB);
+      }
+      if (result != 0) {
+        return result;
+      }
+    }
+    return 0;
+  }
+
+  private static boolean isNumber(String part) {
+    if (part.isEmpty() || part.length() > 18) {
+      return false;
+    }
+    for (int i = 0; i < part.length(); i++) {
+      if (!Character.isDigit(part.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,234 @@
+package org.mitre.inferno;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.hl7.fhir.utilities.npm.NpmPackage.NpmPackageFolder;
+
+/**
+ * What an IG package contains, read from its package.json and .index.json.
+ * <p>
+ * A manifest is all the service keeps of a package once its content is in the validation engine,
+ * so the package's files can be garbage collected. It can also be read from a package file
+ * without unpacking the rest of the package.
+ * </p>
+ */
+class PackageManifest {
+  private static final String PACKAGE_JSON = "package/package.json";
+  private static final String INDEX_JSON = "package/.index.json";
+
+  private final File file;
+  private final String id;
+  private final String version;
+  private final String canonical;
+  private final List<String> profiles;
+  private final Map<String, String> dependencies;
+  private final long contentBytes;
+
+  private PackageManifest(File file, JsonObject packageJson, JsonObject index, long contentBytes) {
+    this.file = file;
+    this.contentBytes = contentBytes;
+    this.id = string(packageJson, "name");
+    this.version = string(packageJson, "version");
+    this.canonical = string(packageJson, "canonical");
+    this.dependencies = dependencies(packageJson.get("dependencies"));
+    List<String> profiles = new ArrayList<>();
+    for (JsonElement f : index.getAsJsonArray("files")) {
+      JsonObject entry = f.getAsJsonObject();
+      String url = string(entry, "url");
+      if ("StructureDefinition".equals(string(entry, "resourceType")) && url != null) {
+        profiles.add(url);
+      }
+    }
+    Collections.sort(profiles);
+    this.profiles = Collections.unmodifiableList(profiles);
+  }
+
+  private PackageManifest(JsonObject json) {
+    String path = string(json, "file");
+    this.file = path != null ? new File(path) : null;
+    this.contentBytes = json.get("contentBytes").getAsLong();
+    this.id = string(json, "id");
+    this.version = string(json, "version");
+    this.canonical = string(json, "canonical");
+    this.dependencies = dependencies(json.get("dependencies"));
+    List<String> profiles = new ArrayList<>();
+    for (JsonElement profile : json.getAsJsonArray("profiles")) {
+      profiles.add(profile.getAsString());
+    }
+    this.profiles = Collections.unmodifiableList(profiles);
+  }
+
+  /**
+   * Reads the manifest of a tarred/gzipped IG package. Reading stops as soon as both
+   * package.json and .index.json have been found.
+   *
+   * @param file the package file
+   * @return the manifest, or null if the package has no package.json or .index.json
+   * @throws IOException if the package cannot be read
+   */
+  static PackageManifest read(File file) throws IOException {
+    JsonObject packageJson = null;
+    JsonObject index = null;
+    try (TarArchiveInputStream tar = new TarArchiveInputStream(new GZIPInputStream(
+        new BufferedInputStream(new FileInputStream(file))))) {
+      TarArchiveEntry entry;
+      while ((packageJson == null || index == null) && (entry = tar.getNextEntry()) != null) {
+        if (PACKAGE_JSON.equals(entry.getName())) {
+          packageJson = readJson(tar);
+        } else if (INDEX_JSON.equals(entry.getName())) {
+          index = readJson(tar);
+        }
+      }
+    }
+    if (packageJson == null || index == null) {
+      return null;
+    }
+    return new PackageManifest(file, packageJson, index, -1);
+  }
+
+  /**
+   * Describes an unpacked IG package.
+   *
+   * @param npm the package
+   * @param file the file the package was read from, or null if it was not read from a file
+   * @return the manifest
+   * @throws IOException if the package has no package.json or .index.json
+   */
+  static PackageManifest fromPackage(NpmPackage npm, File file) throws IOException {
+    JsonObject packageJson;
+    JsonObject index;
+    try (InputStream in = npm.load("package.json")) {
+      packageJson = readJson(in);
+    }
+    try (InputStream in = npm.load(".index.json")) {
+      index = readJson(in);
+    }
+    long contentBytes = 0;
+    for (NpmPackageFolder folder : npm.getFolders().values()) {
+      for (String name : folder.listFiles()) {
+        byte[] content = folder.fetchFile(name);
+        if (content != null) {
+          contentBytes += content.length;
+        }
+      }
+    }
+    return new PackageManifest(file, packageJson, index, contentBytes);
+  }
+
+  /**
+   * Reads a manifest saved with {@link #toJson()}.
+   *
+   * @param json the saved manifest
+   * @return the manifest
+   */
+  static PackageManifest fromJson(String json) {
+    return new PackageManifest(JsonParser.parseString(json).getAsJsonObject());
+  }
+
+  /**
+   * Saves the manifest, such as in a validator snapshot.
+   *
+   * @return the manifest as JSON, which {@link #fromJson(String)} reads back
+   */
+  String toJson() {
+    JsonObject json = new JsonObject();
+    if (file != null) {
+      json.addProperty("file", file.getPath());
+    }
+    json.addProperty("id", id);
+    json.addProperty("version", version);
+    json.addProperty("canonical", canonical);
+    JsonArray profiles = new JsonArray();
+    this.profiles.forEach(profiles::add);
+    json.add("profiles", profiles);
+    JsonObject dependencies = new JsonObject();
+    this.dependencies.forEach(dependencies::addProperty);
+    json.add("dependencies", dependencies);
+    json.addProperty("contentBytes", contentBytes);
+    return json.toString();
+  }
+
+  private static Map<String, String> dependencies(JsonElement deps) {
+    Map<String, String> dependencies = new LinkedHashMap<>();
+    if (deps != null && deps.isJsonObject()) {
+      for (Map.Entry<String, JsonElement> dep : deps.getAsJsonObject().entrySet()) {
+        dependencies.put(dep.getKey(), dep.getValue().getAsString());
+      }
+    }
+    return Collections.unmodifiableMap(dependencies);
+  }
+
+  private static JsonObject readJson(InputStream in) {
+    // the reader is not closed, since that would close the rest of the archive
+    return JsonParser.parseReader(new InputStreamReader(in, StandardCharsets.UTF_8))
+        .getAsJsonObject();
+  }
+
+  private static String string(JsonObject json, String name) {
+    JsonElement value = json.get(name);
+    return value != null && value.isJsonPrimitive() ? value.getAsString() : null;
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  String getId() {
+    return id;
+  }
+
+  String getVersion() {
+    return version;
+  }
+
+  String getCanonical() {
+    return canonical;
+  }
+
+  /**
+   * Lists the URLs of the package's StructureDefinitions.
+   *
+   * @return a sorted list of profile URLs
+   */
+  List<String> getProfiles() {
+    return profiles;
+  }
+
+  /**
+   * Gives the size of the package's files once unpacked, as a guide to the memory its content
+   * takes up in the validation engine.
+   *
+   * @return the total size of the package's files in bytes, or -1 if the package hasn't been
+   *     unpacked
+   */
+  long getContentBytes() {
+    return contentBytes;
+  }
+
+  /**
+   * Lists the packages this package depends on.
+   *
+   * @return a map of package ID to version
+   */
+  Map<String, String> getDependencies() {
+    return dependencies;
+  }
+}
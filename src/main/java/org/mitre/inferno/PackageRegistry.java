@@ -0,0 +1,183 @@
+package org.mitre.inferno;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.utilities.npm.PackageClient;
+import org.hl7.fhir.utilities.npm.PackageInfo;
+import org.hl7.fhir.utilities.npm.PackageServer;
+import org.mitre.inferno.utils.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cached listing of the IG packages available from the package servers.
+ * <p>
+ * The listing is refreshed in the background and the last good copy is kept on disk, so reading
+ * it never waits on the network, and a stale copy keeps being served while the servers are
+ * unreachable.
+ * </p>
+ */
+class PackageRegistry {
+  private static final Type LISTING_TYPE = new TypeToken<Map<String, String>>() {}.getType();
+  private static final Logger LOGGER = LoggerFactory.getLogger(PackageRegistry.class);
+
+  private final List<PackageServer> servers;
+  private final File cacheFile;
+  private final long refreshMillis;
+  private volatile Map<String, String> packages = Collections.emptyMap();
+  private volatile ScheduledExecutorService scheduler;
+
+  /**
+   * Creates a registry listing, without loading or fetching anything yet.
+   *
+   * @param servers the package servers to list, in order of preference
+   * @param cacheFile where the last good listing is kept
+   * @param refreshMillis how often to fetch a new listing, or 0 or less to never replace a listing
+   *     once there is one
+   */
+  PackageRegistry(List<PackageServer> servers, File cacheFile, long refreshMillis) {
+    this.servers = servers;
+    this.cacheFile = cacheFile;
+    this.refreshMillis = refreshMillis;
+  }
+
+  /**
+   * Loads the listing saved on disk and schedules background refreshes. If nothing has been
+   * saved yet, the first listing is fetched in the background right away, and the listing is
+   * empty until that finishes, so starting never waits on the network.
+   */
+  void start() {
+    long delay = 0;
+    boolean loaded = loadFromDisk();
+    if (loaded) {
+      long age = System.currentTimeMillis() - cacheFile.lastModified();
+      delay = Math.max(0, refreshMillis - age);
+    }
+    if (loaded && refreshMillis <= 0) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(
+        new NamedThreadFactory("package-registry"));
+    if (refreshMillis > 0) {
+      scheduler.scheduleWithFixedDelay(this::refresh, delay, refreshMillis, TimeUnit.MILLISECONDS);
+    } else {
+      // the thread ends once the first listing has been fetched
+      scheduler.execute(this::refresh);
+      scheduler.shutdown();
+    }
+  }
+
+  /**
+   * Stops refreshing the listing in the background.
+   */
+  void stop() {
+    ScheduledExecutorService current = scheduler;
+    if (current != null) {
+      current.shutdownNow();
+    }
+  }
+
+  /**
+   * Provides the most recent listing.
+   *
+   * @return an immutable map of package ID to canonical URL
+   */
+  Map<String, String> getPackages() {
+    return packages;
+  }
+
+  /**
+   * Fetches a new listing from every package server. Packages from servers that could not be
+   * reached are carried over from the previous listing.
+   */
+  void refresh() {
+    Map<String, String> listing = new LinkedHashMap<>();
+    boolean complete = true;
+    for (PackageServer server : servers) {
+      try {
+        listSpecs(listing, server);
+      } catch (Exception e) {
+        complete = false;
+        LOGGER.warn("Could not list packages from " + server.getUrl() + ": " + e.getMessage());
+      }
+    }
+    if (!complete) {
+      for (Map.Entry<String, String> e : packages.entrySet()) {
+        listing.putIfAbsent(e.getKey(), e.getValue());
+      }
+    }
+    if (listing.isEmpty()) {
+      return;
+    }
+    // saved first, so whoever sees the new listing can also read it from disk
+    saveToDisk(listing);
+    packages = Collections.unmodifiableMap(listing);
+  }
+
+  // copied from
+  // https://github.com/hapifhir/org.hl7.fhir.core/blob/6.2.8/org.hl7.fhir.utilities/src/main/java/org/hl7/fhir/utilities/npm/FilesystemPackageCacheManager.java#L318
+  private void listSpecs(Map<String, String> specList, PackageServer server) throws IOException {
+    PackageClient pc = new PackageClient(server);
+    List<PackageInfo> matches = pc.search(null, null, null, false);
+    if (matches.isEmpty()) {
+      // the client reports a server it couldn't reach as one that has no packages
+      throw new IOException("no packages listed");
+    }
+    for (PackageInfo m : matches) {
+      if (!specList.containsKey(m.getId())) {
+        specList.put(m.getId(), m.getUrl());
+      }
+    }
+  }
+
+  private boolean loadFromDisk() {
+    if (!cacheFile.isFile()) {
+      return false;
+    }
+    try (Reader reader = Files.newBufferedReader(cacheFile.toPath(), StandardCharsets.UTF_8)) {
+      Map<String, String> listing = new Gson().fromJson(reader, LISTING_TYPE);
+      if (listing == null || listing.isEmpty()) {
+        return false;
+      }
+      packages = Collections.unmodifiableMap(new LinkedHashMap<>(listing));
+      return true;
+    } catch (Exception e) {
+      LOGGER.warn("Ignoring unreadable package listing " + cacheFile, e);
+      return false;
+    }
+  }
+
+  private void saveToDisk(Map<String, String> listing) {
+    try {
+      File parent = cacheFile.getAbsoluteFile().getParentFile();
+      Files.createDirectories(parent.toPath());
+      File temp = File.createTempFile("package-registry", ".tmp", parent);
+      try {
+        try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+          new Gson().toJson(listing, LISTING_TYPE, writer);
+        }
+        Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        temp.delete();
+      }
+    } catch (IOException e) {
+      LOGGER.warn("Could not save the package listing to " + cacheFile, e);
+    }
+  }
+}
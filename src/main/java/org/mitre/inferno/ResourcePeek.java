@@ -0,0 +1,153 @@
+package org.mitre.inferno;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+
+/**
+ * The resource type and meta.profile of a serialized FHIR resource, read without parsing the
+ * whole resource.
+ * <p>
+ * Reading stops as soon as both values have been found, so for typical resources only the
+ * first few fields are looked at. Anything that can't be read yields an empty peek.
+ * </p>
+ */
+public class ResourcePeek {
+  private static final XMLInputFactory XML_FACTORY = createXmlFactory();
+
+  private final String resourceType;
+  private final List<String> metaProfiles;
+
+  private ResourcePeek(String resourceType, List<String> metaProfiles) {
+    this.resourceType = resourceType;
+    this.metaProfiles = metaProfiles;
+  }
+
+  /**
+   * Reads the resource type and meta.profile from the given resource.
+   *
+   * @param resource a byte array representation of a FHIR resource
+   * @param fmt the format of the resource
+   * @return the peeked values, which are null/empty if they could not be read
+   */
+  public static ResourcePeek of(byte[] resource, FhirFormat fmt) {
+    try {
+      if (fmt == FhirFormat.JSON) {
+        return peekJson(resource);
+      } else if (fmt == FhirFormat.XML) {
+        return peekXml(resource);
+      }
+    } catch (Exception e) {
+      // fall through - this is informational only
+    }
+    return new ResourcePeek(null, Collections.emptyList());
+  }
+
+  public String getResourceType() {
+    return resourceType;
+  }
+
+  public List<String> getMetaProfiles() {
+    return metaProfiles;
+  }
+
+  private static ResourcePeek peekJson(byte[] resource) throws Exception {
+    String type = null;
+    List<String> profiles = new ArrayList<>();
+    boolean metaSeen = false;
+    try (JsonReader reader = new JsonReader(
+        new InputStreamReader(new ByteArrayInputStream(resource), StandardCharsets.UTF_8))) {
+      reader.beginObject();
+      while (reader.hasNext() && (type == null || !metaSeen)) {
+        String name = reader.nextName();
+        if (name.equals("resourceType") && reader.peek() == JsonToken.STRING) {
+          type = reader.nextString();
+        } else if (name.equals("meta") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+          metaSeen = true;
+          readJsonMetaProfiles(reader, profiles);
+        } else {
+          reader.skipValue();
+        }
+      }
+    }
+    return new ResourcePeek(type, profiles);
+  }
+
+  private static void readJsonMetaProfiles(JsonReader reader, List<String> profiles)
+      throws Exception {
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (reader.nextName().equals("profile") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+        reader.beginArray();
+        while (reader.hasNext()) {
+          if (reader.peek() == JsonToken.STRING) {
+            profiles.add(reader.nextString());
+          } else {
+            reader.skipValue();
+          }
+        }
+        reader.endArray();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+  }
+
+  private static ResourcePeek peekXml(byte[] resource) throws Exception {
+    String type = null;
+    List<String> profiles = new ArrayList<>();
+    XMLStreamReader reader =
+        XML_FACTORY.createXMLStreamReader(new ByteArrayInputStream(resource));
+    try {
+      int depth = 0;
+      boolean inMeta = false;
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          depth++;
+          String name = reader.getLocalName();
+          if (depth == 1) {
+            type = name;
+          } else if (depth == 2) {
+            // meta can only be preceded by id, so anything else means we're done
+            if (name.equals("meta")) {
+              inMeta = true;
+            } else if (!name.equals("id")) {
+              break;
+            }
+          } else if (depth == 3 && inMeta && name.equals("profile")) {
+            String value = reader.getAttributeValue(null, "value");
+            if (value != null) {
+              profiles.add(value);
+            }
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          if (depth == 2 && inMeta) {
+            break;
+          }
+          depth--;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return new ResourcePeek(type, profiles);
+  }
+
+  private static XMLInputFactory createXmlFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    return factory;
+  }
+}
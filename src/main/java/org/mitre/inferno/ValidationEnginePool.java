@@ -0,0 +1,139 @@
+package org.mitre.inferno;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.hl7.fhir.r5.fhirpath.FHIRPathEngine;
+import org.hl7.fhir.validation.IgLoader;
+import org.hl7.fhir.validation.ValidationEngine;
+
+/**
+ * A fixed-size pool of ValidationEngines copied from a single prepared engine.
+ * <p>
+ * Each copy gets its own worker context, but the conformance resources held by the source engine
+ * are shared rather than reloaded. An engine is only ever used by one request at a time. The
+ * source engine is never changed once the pool exists, so a pool together with its source forms
+ * one consistent generation of loaded content.
+ * </p>
+ */
+class ValidationEnginePool {
+  private final ValidationEngine source;
+  private final BlockingQueue<ValidationEngine> idle;
+  private final long contentGeneration;
+  private final int size;
+  private final long borrowTimeoutMillis;
+
+  /**
+   * Creates a pool of copies of the given engine.
+   *
+   * @param source the prepared engine to copy
+   * @param contentGeneration identifies the content loaded into the source engine
+   * @param size the number of engines in the pool
+   * @param borrowTimeoutMillis how long a request may wait for an engine before giving up
+   * @param configurer applies validation settings to each copy
+   * @throws IOException if an engine could not be copied
+   */
+  ValidationEnginePool(
+      ValidationEngine source,
+      long contentGeneration,
+      int size,
+      long borrowTimeoutMillis,
+      Consumer<ValidationEngine> configurer
+  ) throws IOException {
+    this.source = source;
+    this.contentGeneration = contentGeneration;
+    this.size = size;
+    this.borrowTimeoutMillis = borrowTimeoutMillis;
+    this.idle = new ArrayBlockingQueue<>(size);
+    for (int i = 0; i < size; i++) {
+      ValidationEngine copy = copyOf(source);
+      configurer.accept(copy);
+      idle.add(copy);
+    }
+  }
+
+  /**
+   * Takes an engine out of the pool, waiting up to the configured timeout for one to be returned.
+   *
+   * @return an engine that the caller has exclusive use of until it is released
+   * @throws ValidatorBusyException if no engine became available in time
+   */
+  ValidationEngine borrow() {
+    ValidationEngine engine;
+    try {
+      engine = idle.poll(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ValidatorBusyException("Interrupted while waiting for a validation engine");
+    }
+    if (engine == null) {
+      throw new ValidatorBusyException("All " + size + " validation engines are busy, "
+          + "please retry later.");
+    }
+    return engine;
+  }
+
+  /**
+   * Returns a borrowed engine to the pool.
+   *
+   * @param engine the engine previously obtained from {@link #borrow()}
+   */
+  void release(ValidationEngine engine) {
+    idle.offer(engine);
+  }
+
+  /**
+   * Provides the engine the pool's engines were copied from, for reading the loaded content.
+   *
+   * @return the source engine, which must not be changed
+   */
+  ValidationEngine getSource() {
+    return source;
+  }
+
+  /**
+   * Identifies the content that was loaded when the pool was created. Any change to the loaded
+   * profiles or IGs results in a new pool with a higher generation.
+   *
+   * @return the content generation of this pool's engines
+   */
+  long getContentGeneration() {
+    return contentGeneration;
+  }
+
+  int size() {
+    return size;
+  }
+
+  int available() {
+    return idle.size();
+  }
+
+  /**
+   * Copies an engine. The copy gets its own worker context, and its own IG loader and FHIRPath
+   * engine bound to that context, so loading content into the copy never changes the source.
+   *
+   * @param source the engine to copy
+   * @return the copy
+   * @throws IOException if the engine could not be copied
+   */
+  static ValidationEngine copyOf(ValidationEngine source) throws IOException {
+    ValidationEngine copy;
+    try {
+      copy = new ValidationEngine(source);
+    } catch (Exception e) {
+      throw new IOException("Failed to copy the validation engine", e);
+    }
+    IgLoader loader = source.getIgLoader();
+    IgLoader copyLoader = new IgLoader(
+        loader.getPackageCacheManager(), copy.getContext(), loader.getVersion(), loader.isDebug());
+    copyLoader.setDirectProvider(loader.getDirectProvider());
+    copy.setIgLoader(copyLoader);
+    FHIRPathEngine fhirPathEngine = new FHIRPathEngine(copy.getContext());
+    fhirPathEngine.setAllowDoubleQuotes(false);
+    copy.setFhirPathEngine(fhirPathEngine);
+    return copy;
+  }
+}
@@ -2,18 +2,53 @@ package org.mitre.inferno;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
-import org.apache.commons.io.FileUtils;
+import java.util.stream.Stream;
 import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.convertors.txClient.TerminologyClientFactory;
 import org.hl7.fhir.r5.elementmodel.Manager;
 import org.hl7.fhir.r5.formats.FormatUtilities;
+import org.hl7.fhir.r5.model.CanonicalResource;
 import org.hl7.fhir.r5.model.CodeType;
 import org.hl7.fhir.r5.model.CodeableConcept;
 import org.hl7.fhir.r5.model.ImplementationGuide;
@@ -23,14 +58,13 @@ import org.hl7.fhir.r5.model.OperationOutcome.IssueType;
 import org.hl7.fhir.r5.model.OperationOutcome.OperationOutcomeIssueComponent;
 import org.hl7.fhir.r5.model.Resource;
 import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.terminologies.client.ITerminologyClient;
+import org.hl7.fhir.r5.terminologies.utilities.TerminologyCache;
 import org.hl7.fhir.r5.utils.validation.constants.ReferenceValidationPolicy;
 import org.hl7.fhir.utilities.FhirPublication;
 import org.hl7.fhir.utilities.VersionUtilities;
 import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
 import org.hl7.fhir.utilities.npm.NpmPackage;
-import org.hl7.fhir.utilities.npm.PackageClient;
-import org.hl7.fhir.utilities.npm.PackageInfo;
-import org.hl7.fhir.utilities.npm.PackageServer;
 import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
 import org.hl7.fhir.validation.BaseValidator;
 import org.hl7.fhir.validation.BaseValidator.ValidationControl;
@@ -40,14 +74,58 @@ import org.hl7.fhir.validation.ValidatorSettings;
 import org.hl7.fhir.validation.cli.services.DisabledValidationPolicyAdvisor;
 import org.hl7.fhir.validation.instance.advisor.BasePolicyAdvisorForFullValidation;
 import org.mitre.inferno.rest.IgResponse;
+import org.mitre.inferno.utils.BoundedCache;
+import org.mitre.inferno.utils.EnvUtils;
+import org.mitre.inferno.utils.Metrics;
+import org.mitre.inferno.utils.NamedThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class Validator {
-  private final ValidationEngine hl7Validator;
+public class Validator implements AutoCloseable {
+  private final boolean displayIssuesAreWarnings;
+  private final int poolSize;
+  // the current engine generation, replaced as a whole whenever content is loaded
+  private volatile ValidationEnginePool enginePool;
+  // validates batch requests on one fewer thread than there are engines, leaving one for others
+  private final int batchThreads;
+  private final ExecutorService batchExecutor;
+  // runs validations that have a deadline, so the requesting thread can stop waiting for them
+  private final ThreadPoolExecutor deadlineExecutor;
+  private final long defaultTimeoutMillis;
+  private final int maxAbandoned;
+  // validations that ran past their deadline but are still running, each holding an engine
+  private final AtomicInteger abandonedCount = new AtomicInteger();
+  private final BoundedCache<String, OperationOutcome> validationCache;
+  private final AtomicLong contentGeneration = new AtomicLong();
+  private final LongAdder engineBusyNanos = new LongAdder();
+  private final LongAdder evictionCount = new LongAdder();
+  private final LongAdder timeoutCount = new LongAdder();
+  private String snapshotFingerprint;
+  private Set<Resource> coreResources;
+  private List<String> corePackages;
+  private final Map<String, List<String>> profilesByIgIndex = new HashMap<>();
+  private volatile Map<String, List<String>> profilesByIg = Collections.emptyMap();
   private final FilesystemPackageCacheManager packageManager;
-  private final Map<String, NpmPackage> loadedPackages;
+  // what remains of each package loaded into the engine, once the engine has its content
+  private final PackageIndex<PackageManifest> loadedPackages = new PackageIndex<>();
+  private final PackageRegistry packageRegistry;
+  // bundled IG packages that are only loaded once one of their profiles is used
+  private final PackageIndex<PackageManifest> lazyPackages = new PackageIndex<>();
+  private final Map<String, PackageManifest> lazyPackagesByProfile = new ConcurrentHashMap<>();
+  private final Map<String, CompletableFuture<Void>> lazyLoads = new ConcurrentHashMap<>();
+  // IGs loaded at runtime, which are evicted when over budget and reloaded on their next use
+  private final PackageBudget<PackageManifest> packageBudget;
+  private final Set<String> evictedPackages = ConcurrentHashMap.newKeySet();
+  // set when there is a budget: the engine as it was at startup, which evictions rebuild from
+  private final ValidationEngine baseline;
+  // set when there is a budget: where uploaded packages are kept, to be loaded again from
+  private final File uploadDir;
+  // how to load again, in order, the content loaded since startup that hasn't been evicted
+  private final Map<String, ContentChange<?>> loadHistory = new LinkedHashMap<>();
   private static final Logger LOGGER = LoggerFactory.getLogger(Validator.class);
+  private static final String VALIDATION_TIME_METRIC = "validation_duration_seconds";
+  private static final String VALIDATION_TIME_HELP =
+      "Time an engine spent validating, by requested profile";
 
   /**
    * Creates the HL7 Validator to which can then be used for validation.
@@ -69,10 +147,23 @@ public class Validator {
    * @throws Exception If the validator cannot be created
    */
   public Validator(String igDir, boolean displayIssuesAreWarnings) throws Exception {
+    this(igDir, displayIssuesAreWarnings, getTxServerUrl());
+  }
+
+  /**
+   * Creates the HL7 Validator, checking codes with the given terminology server.
+   *
+   * @param igDir A directory containing tarred/gzipped IG packages
+   * @param displayIssuesAreWarnings
+   *    Toggles whether code display mismatches should be
+   *      reported as warnings (true) or errors (false).
+   * @param txServer the terminology server's URL, or null to validate without one
+   * @throws Exception If the validator cannot be created
+   */
+  Validator(String igDir, boolean displayIssuesAreWarnings, String txServer) throws Exception {
     final String fhirSpecVersion = "4.0";
     final String definitions = VersionUtilities.packageForVersion(fhirSpecVersion)
         + "#" + VersionUtilities.getCurrentVersion(fhirSpecVersion);
-    final String txServer = getTxServerUrl();
     final String txLog = null;
     final String fhirVersion = "4.0.1";
     final boolean useEcosystem = true;
@@ -84,14 +175,8 @@ public class Validator {
                                                    FhirPublication.fromCode(fhirVersion),
                                                    useEcosystem
                                                    );
-    hl7Validator = engineBuilder.fromSource(definitions);
-    
-    // The two lines below turn off URL resolution checking in the validator. 
-    // This eliminates the need to silence these errors elsewhere in Inferno
-    // And also keeps contained resources from failing validation based solely on URL errors
-    ValidationControl vc = new BaseValidator(hl7Validator.getContext(), new ValidatorSettings(), null, null)
-                             .new ValidationControl(false, IssueSeverity.INFORMATION);
-    hl7Validator.getValidationControl().put("Type_Specific_Checks_DT_URL_Resolve", vc);
+    ValidationEngine hl7Validator = engineBuilder.fromSource(definitions);
+    this.displayIssuesAreWarnings = displayIssuesAreWarnings;
 
     // Get all the package gzips in the "igs/package" directory
     File dir = new File(igDir);
@@ -100,31 +185,483 @@ public class Validator {
       // sort the files by name to ensure a consistent order -- see File.compareTo(File)
       // https://docs.oracle.com/javase/8/docs/api/java/io/File.html#compareTo-java.io.File-
       Arrays.sort(igFiles);
-      for (File igFile : igFiles) {
-        hl7Validator
-            .getIgLoader()
-            .loadIg(
-                    hl7Validator.getIgs(),
-                    hl7Validator.getBinaries(),
-                    igFile.getAbsolutePath(),
-                    true
-                    );
+    }
+
+    boolean lazyIgLoading = EnvUtils.getBoolean("LAZY_IG_LOADING", false);
+    String snapshotPath = EnvUtils.getString("VALIDATOR_SNAPSHOT", null);
+    if (lazyIgLoading && snapshotPath != null) {
+      // a snapshot would hold only the IGs that happened to be loaded, not all of them
+      LOGGER.warn("Ignoring VALIDATOR_SNAPSHOT because LAZY_IG_LOADING is enabled");
+      snapshotPath = null;
+    }
+    ValidatorSnapshot snapshot = null;
+    if (snapshotPath != null) {
+      snapshotFingerprint = ValidatorSnapshot.fingerprint(igFiles);
+      snapshot = ValidatorSnapshot.read(new File(snapshotPath), snapshotFingerprint);
+    }
+    if (snapshot != null) {
+      restoreSnapshot(hl7Validator, snapshot);
+    } else {
+      if (snapshotPath != null) {
+        // remember what came from the core definitions, so a snapshot can leave it out
+        coreResources = Collections.newSetFromMap(new IdentityHashMap<>());
+        coreResources.addAll(
+            hl7Validator.getContext().fetchResourcesByType(CanonicalResource.class));
+        corePackages = new ArrayList<>(hl7Validator.getContext().getLoadedPackages());
+      }
+      if (igFiles != null && lazyIgLoading) {
+        loadIgFiles(hl7Validator, indexIgFiles(igFiles));
+      } else if (igFiles != null) {
+        loadIgFiles(hl7Validator, igFiles);
       }
     }
 
+    String txCacheDir = getTxCacheDir();
+    if (txCacheDir != null && txServer != null) {
+      // Terminology responses, and the server's capabilities once connected, are persisted here
+      // as they are received, and cached responses are served without asking the server.
+      Files.createDirectories(Paths.get(txCacheDir));
+      hl7Validator.getContext().initTxCache(txCacheDir);
+      LOGGER.info("Using terminology cache in " + txCacheDir);
+    }
     hl7Validator.connectToTSServer(
         txServer, txLog, FhirPublication.fromCode(fhirVersion), useEcosystem);
-    hl7Validator.setDoNative(false);
-    hl7Validator.setAnyExtensionsAllowed(true);
-    hl7Validator.setDisplayWarnings(displayIssuesAreWarnings);
+    if (txCacheDir != null && txServer != null) {
+      cacheCapabilityStatement(hl7Validator);
+    }
+    if (txCacheDir != null && txServer == null) {
+      useCachedTerminology(hl7Validator, txCacheDir, FhirPublication.fromCode(fhirVersion));
+    }
+    configureEngine(hl7Validator);
+    hl7Validator.prepare();
+    poolSize = Math.max(1, EnvUtils.getInt("VALIDATOR_POOL_SIZE",
+        Runtime.getRuntime().availableProcessors()));
+    packageBudget = new PackageBudget<>(EnvUtils.getInt("IG_MAX_LOADED", 0),
+        EnvUtils.getLong("IG_MEMORY_BUDGET_MB", 0) * 1024 * 1024);
+    baseline = packageBudget.isEnabled() ? hl7Validator : null;
+    if (baseline != null) {
+      uploadDir = Files.createTempDirectory("ig-uploads").toFile();
+      uploadDir.deleteOnExit();
+    } else {
+      uploadDir = null;
+    }
+    publish(hl7Validator);
+    batchThreads = Math.max(1, poolSize - 1);
+    batchExecutor = Executors.newFixedThreadPool(batchThreads,
+        new NamedThreadFactory("batch-validation"));
+    maxAbandoned = Math.max(1, EnvUtils.getInt("VALIDATION_MAX_ABANDONED", poolSize));
+    // a thread for each engine, and for each abandoned validation that may still be running
+    deadlineExecutor = new ThreadPoolExecutor(0, poolSize + maxAbandoned, 60, TimeUnit.SECONDS,
+        new SynchronousQueue<>(), new NamedThreadFactory("validation"));
+    defaultTimeoutMillis = Math.max(0, EnvUtils.getLong("VALIDATION_TIMEOUT_MS", 0));
+    int cacheSize = EnvUtils.getInt("VALIDATION_CACHE_SIZE", 0);
+    validationCache = cacheSize > 0
+        ? new BoundedCache<>(cacheSize, EnvUtils.getLong("VALIDATION_CACHE_TTL_SECONDS", 0) * 1000)
+        : null;
+
+    packageManager = new FilesystemPackageCacheManager.Builder().build();
+    packageRegistry = new PackageRegistry(
+        new ArrayList<>(packageManager.getPackageServers()),
+        new File(getPackageRegistryCacheFile()),
+        EnvUtils.getLong("PACKAGE_REGISTRY_REFRESH_SECONDS", 3600) * 1000);
+    packageRegistry.start();
+    updateProfilesByIg();
+  }
+
+  /**
+   * Stops the validator's background threads. Validations that are already running finish, but
+   * no new batch validations or registry refreshes start.
+   */
+  @Override
+  public void close() {
+    packageRegistry.stop();
+    batchExecutor.shutdown();
+    deadlineExecutor.shutdown();
+  }
+
+  /**
+   * Loads the given IG packages into an engine. The packages are unpacked and parsed in
+   * parallel, but are added to the engine one at a time in the given order, so the result is the
+   * same as loading them sequentially.
+   *
+   * @param hl7Validator the engine to load the packages into
+   * @param igFiles the tarred/gzipped IG packages to load
+   * @throws Exception if a package cannot be read or loaded
+   */
+  private void loadIgFiles(ValidationEngine hl7Validator, File[] igFiles) throws Exception {
+    List<CompletableFuture<NpmPackage>> packages = new ArrayList<>();
+    for (File igFile : igFiles) {
+      packages.add(CompletableFuture.supplyAsync(() -> readPackage(igFile),
+          ForkJoinPool.commonPool()));
+    }
+    for (int i = 0; i < packages.size(); i++) {
+      NpmPackage npm;
+      try {
+        npm = packages.get(i).join();
+      } catch (CompletionException e) {
+        throw new IOException("Failed to read IG package " + igFiles[i], e.getCause());
+      }
+      // let each package be collected as soon as the engine has taken what it needs
+      packages.set(i, null);
+      hl7Validator.getIgLoader().loadPackage(npm, true);
+      PackageManifest manifest = retain(npm, igFiles[i]);
+      profilesByIgIndex.putIfAbsent(manifest.getId(), manifest.getProfiles());
+      LOGGER.info("Loaded IG from " + igFiles[i].getName() + ": " + npm.id() + "#" + npm.version());
+    }
+  }
+
+  /**
+   * Restores the content of the bundled IGs from a snapshot, leaving the engine and the IG
+   * lookups as they would be if the IGs had been loaded.
+   *
+   * @param hl7Validator the engine to restore the content into
+   * @param snapshot the saved content
+   */
+  private void restoreSnapshot(ValidationEngine hl7Validator, ValidatorSnapshot snapshot) {
+    for (Resource resource : snapshot.getResources()) {
+      hl7Validator.getContext().cacheResource(resource);
+    }
+    // so the engine doesn't load these packages again as dependencies of other packages
+    List<String> contextPackages = hl7Validator.getContext().getLoadedPackages();
+    for (String loaded : snapshot.getLoadedPackages()) {
+      if (!contextPackages.contains(loaded)) {
+        contextPackages.add(loaded);
+      }
+    }
+    for (PackageManifest manifest : snapshot.getPackages()) {
+      loadedPackages.put(manifest.getId(), manifest.getVersion(), manifest);
+      profilesByIgIndex.putIfAbsent(manifest.getId(), manifest.getProfiles());
+      LOGGER.info("Restored IG from snapshot: " + manifest.getId() + "#" + manifest.getVersion());
+    }
+  }
+
+  /**
+   * Reads the manifest of each IG package so that the package can be loaded the first time one
+   * of its profiles is used, instead of now.
+   *
+   * @param igFiles the tarred/gzipped IG packages
+   * @return the packages without a usable manifest, which have to be loaded now
+   * @throws IOException if a package cannot be read
+   */
+  private File[] indexIgFiles(File[] igFiles) throws IOException {
+    List<File> eager = new ArrayList<>();
+    for (File igFile : igFiles) {
+      PackageManifest manifest = PackageManifest.read(igFile);
+      if (manifest == null || manifest.getId() == null || manifest.getVersion() == null) {
+        LOGGER.warn("Loading " + igFile.getName() + " now, because it has no package index");
+        eager.add(igFile);
+        continue;
+      }
+      lazyPackages.put(manifest.getId(), manifest.getVersion(), manifest);
+      for (String profile : manifest.getProfiles()) {
+        lazyPackagesByProfile.putIfAbsent(profile, manifest);
+      }
+      profilesByIgIndex.putIfAbsent(manifest.getId(), manifest.getProfiles());
+      LOGGER.info("Indexed IG from " + igFile.getName() + ": "
+          + manifest.getId() + "#" + manifest.getVersion());
+    }
+    return eager.toArray(new File[0]);
+  }
+
+  /**
+   * Loads any lazily indexed IG packages that define the given profiles, along with the lazily
+   * indexed packages they depend on.
+   *
+   * @param profiles profile URLs, optionally followed by "|version"
+   * @throws IOException if a package cannot be loaded
+   */
+  private void loadLazyPackagesFor(Collection<String> profiles) throws IOException {
+    for (String profile : profiles) {
+      int bar = profile.indexOf('|');
+      PackageManifest manifest =
+          lazyPackagesByProfile.get(bar >= 0 ? profile.substring(0, bar) : profile);
+      if (manifest != null) {
+        loadLazyPackage(manifest, new HashSet<>());
+      }
+    }
+  }
+
+  /**
+   * Loads a lazily indexed IG package, unless it has been loaded already. When several requests
+   * need the same package at once, it is loaded by the first and the others wait for it.
+   *
+   * @param manifest the package to load
+   * @param loading the packages this thread is already loading, to stop at dependency cycles
+   * @throws IOException if the package cannot be loaded
+   */
+  private void loadLazyPackage(PackageManifest manifest, Set<String> loading)
+      throws IOException {
+    String key = manifest.getId() + "#" + manifest.getVersion();
+    if (!loading.add(key)) {
+      return;
+    }
+    CompletableFuture<Void> load = new CompletableFuture<>();
+    CompletableFuture<Void> existing = lazyLoads.putIfAbsent(key, load);
+    if (existing != null) {
+      try {
+        existing.join();
+      } catch (CompletionException e) {
+        throw new IOException("Failed to load IG " + key, e.getCause());
+      }
+      return;
+    }
+    try {
+      // dependencies that were bundled too are loaded from here rather than from the network
+      for (Map.Entry<String, String> dep : manifest.getDependencies().entrySet()) {
+        PackageManifest dependency = lazyPackages.find(dep.getKey(), dep.getValue());
+        if (dependency != null) {
+          loadLazyPackage(dependency, loading);
+        }
+      }
+      NpmPackage npm = readPackage(manifest);
+      applyContentChange(engine -> {
+        engine.getIgLoader().loadPackage(npm, true);
+        recordLoad(key, next -> {
+          next.getIgLoader().loadPackage(readPackage(manifest), true);
+          return null;
+        });
+        return null;
+      });
+      retain(npm, manifest.getFile());
+      for (String profile : manifest.getProfiles()) {
+        lazyPackagesByProfile.remove(profile, manifest);
+      }
+      boolean reloaded = evictedPackages.remove(key);
+      LOGGER.info((reloaded ? "Reloaded evicted IG on use: " : "Loaded IG on first use: ") + key);
+      updateProfilesByIg();
+      load.complete(null);
+      if (reloaded) {
+        addToBudget(manifest);
+      }
+    } catch (IOException | RuntimeException e) {
+      // forget the failure, so that the next request tries again
+      lazyLoads.remove(key, load);
+      load.completeExceptionally(e);
+      throw e;
+    }
+  }
+
+  /**
+   * Records a package that has been loaded into the engine. Only its manifest is kept, so the
+   * package's files can be collected.
+   *
+   * @param npm the package that was loaded
+   * @param file the file the package was read from, or null
+   * @return the package's manifest
+   * @throws IOException if the package has no package.json or .index.json
+   */
+  private PackageManifest retain(NpmPackage npm, File file) throws IOException {
+    PackageManifest manifest = PackageManifest.fromPackage(npm, file);
+    loadedPackages.put(manifest.getId(), manifest.getVersion(), manifest);
+    return manifest;
+  }
+
+  /**
+   * Starts counting a package loaded at runtime against the IG budget, then evicts the least
+   * recently used packages if the budget is exceeded.
+   *
+   * @param manifest the package that was loaded
+   * @throws IOException if the engine could not be rebuilt without the evicted packages
+   */
+  private void addToBudget(PackageManifest manifest) throws IOException {
+    if (!packageBudget.isEnabled()) {
+      return;
+    }
+    packageBudget.add(manifest.getId() + "#" + manifest.getVersion(), manifest,
+        manifest.getContentBytes(), manifest.getProfiles());
+    evictOverBudget();
+  }
+
+  /**
+   * Evicts the least recently used runtime packages until the rest fit in the IG budget. The
+   * engine cannot unload content, so a new engine generation is built from the startup engine
+   * by loading again everything that is kept. Evicted packages are then loaded on their next
+   * use, the same way as lazily loaded bundled IGs.
+   *
+   * @throws IOException if the engine could not be rebuilt
+   */
+  private synchronized void evictOverBudget() throws IOException {
+    List<PackageManifest> evicted = packageBudget.evict();
+    if (evicted.isEmpty()) {
+      return;
+    }
+    for (PackageManifest manifest : evicted) {
+      String key = manifest.getId() + "#" + manifest.getVersion();
+      loadHistory.remove(key);
+      loadedPackages.remove(manifest.getId(), manifest.getVersion());
+      lazyPackages.put(manifest.getId(), manifest.getVersion(), manifest);
+      for (String profile : manifest.getProfiles()) {
+        lazyPackagesByProfile.put(profile, manifest);
+      }
+      evictedPackages.add(key);
+      // requests from now on load the package into the rebuilt engine
+      lazyLoads.remove(key);
+      LOGGER.info("Evicting IG " + key + " (" + manifest.getContentBytes() + " bytes)");
+    }
+    ValidationEngine next = copyEngine(baseline);
+    for (ContentChange<?> load : new ArrayList<>(loadHistory.values())) {
+      apply(load, next);
+    }
+    contentGeneration.incrementAndGet();
+    publish(next);
+    evictionCount.add(evicted.size());
+  }
+
+  /**
+   * Remembers how to load content again if the engine is rebuilt to evict IGs. This does
+   * nothing if there is no IG budget.
+   *
+   * @param key what was loaded, such as a package's ID and version
+   * @param load loads the content into an engine
+   */
+  private synchronized void recordLoad(String key, ContentChange<?> load) {
+    if (baseline != null) {
+      loadHistory.remove(key);
+      loadHistory.put(key, load);
+    }
+  }
+
+  private static IgResponse toIgResponse(PackageManifest manifest) {
+    return new IgResponse(manifest.getId(), manifest.getVersion(), manifest.getProfiles());
+  }
+
+  /**
+   * Reads a package again from where it was first loaded from: its file, if it was bundled or
+   * uploaded, or the package cache.
+   */
+  private NpmPackage readPackage(PackageManifest manifest) throws IOException {
+    if (manifest.getFile() != null) {
+      return readPackage(manifest.getFile());
+    }
+    return packageManager.loadPackage(manifest.getId(), manifest.getVersion());
+  }
+
+  private static NpmPackage readPackage(File igFile) {
+    try (InputStream in = new FileInputStream(igFile)) {
+      return NpmPackage.fromPackage(in);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Saves the content that the bundled IGs added to this validator, so that later instances can
+   * restore it instead of loading the IGs again. This does nothing unless VALIDATOR_SNAPSHOT is
+   * set, or if this validator was itself restored from an up-to-date snapshot.
+   *
+   * @throws IOException if the snapshot cannot be written
+   */
+  public void writeSnapshot() throws IOException {
+    String snapshotPath = EnvUtils.getString("VALIDATOR_SNAPSHOT", null);
+    if (snapshotPath == null || coreResources == null) {
+      return;
+    }
+    List<CanonicalResource> content = primary()
+        .getContext()
+        .fetchResourcesByType(CanonicalResource.class)
+        .stream()
+        .filter(resource -> !coreResources.contains(resource))
+        .collect(Collectors.toList());
+    List<String> packages = primary()
+        .getContext()
+        .getLoadedPackages()
+        .stream()
+        .filter(loaded -> !corePackages.contains(loaded))
+        .collect(Collectors.toList());
+    new ValidatorSnapshot(loadedPackages.all(), packages, content)
+        .write(new File(snapshotPath), snapshotFingerprint);
+  }
+
+  /**
+   * Applies the settings this service uses for validation to the given engine.
+   *
+   * @param engine the engine to configure
+   */
+  private void configureEngine(ValidationEngine engine) {
+    // The two lines below turn off URL resolution checking in the validator.
+    // This eliminates the need to silence these errors elsewhere in Inferno
+    // And also keeps contained resources from failing validation based solely on URL errors
+    ValidationControl vc =
+        new BaseValidator(engine.getContext(), new ValidatorSettings(), null, null)
+            .new ValidationControl(false, IssueSeverity.INFORMATION);
+    engine.getValidationControl().put("Type_Specific_Checks_DT_URL_Resolve", vc);
+
+    engine.setDoNative(false);
+    engine.setAnyExtensionsAllowed(true);
+    engine.setDisplayWarnings(displayIssuesAreWarnings);
     DisabledValidationPolicyAdvisor policyAdvisor = new DisabledValidationPolicyAdvisor();
     policyAdvisor.setPolicyAdvisor(
         new BasePolicyAdvisorForFullValidation(ReferenceValidationPolicy.CHECK_TYPE_IF_EXISTS));
-    hl7Validator.setPolicyAdvisor(policyAdvisor);
-    hl7Validator.prepare();
+    engine.setPolicyAdvisor(policyAdvisor);
+  }
 
-    packageManager = new FilesystemPackageCacheManager.Builder().build();
-    loadedPackages = new HashMap<>();
+  /**
+   * Makes the given engine the primary engine, with a new pool of copies of it for validation.
+   * Requests that already borrowed an engine from the previous pool finish with it, and the
+   * previous engines are then discarded.
+   *
+   * @param primary the prepared engine holding the content to validate against from now on
+   * @throws IOException if the engine could not be copied
+   */
+  private void publish(ValidationEngine primary) throws IOException {
+    enginePool = new ValidationEnginePool(
+        primary,
+        contentGeneration.get(),
+        poolSize,
+        EnvUtils.getLong("VALIDATOR_POOL_TIMEOUT_MS", 30000),
+        this::configureEngine);
+  }
+
+  /**
+   * Applies a content change to a copy of the primary engine, then publishes the copy as a new
+   * engine generation. Validation and metadata requests keep using the current generation until
+   * the new one is complete, so they never wait for a load or see a partly loaded IG. Changes
+   * are applied one at a time, each on top of the previous one.
+   *
+   * @param change the change to apply to the copy
+   * @return the result of the change
+   * @throws IOException if the engine could not be copied or the change failed
+   */
+  private synchronized <T> T applyContentChange(ContentChange<T> change) throws IOException {
+    ValidationEngine next = copyEngine(primary());
+    T result = apply(change, next);
+    contentGeneration.incrementAndGet();
+    publish(next);
+    return result;
+  }
+
+  private ValidationEngine copyEngine(ValidationEngine source) throws IOException {
+    ValidationEngine copy = ValidationEnginePool.copyOf(source);
+    configureEngine(copy);
+    return copy;
+  }
+
+  private static <T> T apply(ContentChange<T> change, ValidationEngine engine)
+      throws IOException {
+    try {
+      return change.apply(engine);
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * The engine that the current generation was copied from, which holds the content loaded so
+   * far. It is only read from; content changes go through {@link #applyContentChange}.
+   */
+  ValidationEngine primary() {
+    return enginePool.getSource();
+  }
+
+  /**
+   * A change to the content of an engine, such as loading an IG.
+   *
+   * @param <T> the type of the change's result
+   */
+  private interface ContentChange<T> {
+    T apply(ValidationEngine engine) throws Exception;
   }
 
   /**
@@ -133,7 +670,7 @@ public class Validator {
    * @return a sorted list of distinct resource names
    */
   public List<String> getResources() {
-    return hl7Validator.getContext().getResourceNames()
+    return primary().getContext().getResourceNames()
         .stream()
         .sorted()
         .distinct()
@@ -147,12 +684,13 @@ public class Validator {
    */
   public List<String> getStructures() {
     List<StructureDefinition> structures =
-        hl7Validator
+        primary()
             .getContext()
             .fetchResourcesByType(StructureDefinition.class);
-    return structures
-        .stream()
-        .map(StructureDefinition::getUrl)
+    // profiles of IGs that haven't been needed yet are listed too, since they load on first use
+    return Stream.concat(
+            structures.stream().map(StructureDefinition::getUrl),
+            lazyPackagesByProfile.keySet().stream())
         .sorted()
         .distinct()
         .collect(Collectors.toList());
@@ -164,87 +702,401 @@ public class Validator {
    * @param resource a byte array representation of a FHIR resource
    * @param profiles a list of profile URLs to validate against
    * @return an OperationOutcome resource representing the result of the validation operation
+   * @throws ValidatorBusyException if no validation engine became available in time
    */
   public OperationOutcome validate(byte[] resource, List<String> profiles) {
+    return validate(resource, profiles, 0);
+  }
+
+  /**
+   * Validates the given resource against the given list of profiles, giving up once the
+   * deadline passes. The deadline is the requested timeout, capped by VALIDATION_TIMEOUT_MS if
+   * that is set. A validation that runs past its deadline is abandoned, and the OperationOutcome
+   * reports that the result is incomplete. The abandoned validation can't be stopped, so it runs
+   * on, and its engine only goes back to the pool once it finishes.
+   *
+   * @param resource a byte array representation of a FHIR resource
+   * @param profiles a list of profile URLs to validate against
+   * @param timeoutMillis how long the caller allows for validation, or 0 for the server default
+   * @return an OperationOutcome resource representing the result of the validation operation
+   * @throws ValidatorBusyException if no validation engine became available in time, or too many
+   *     abandoned validations are still running
+   */
+  public OperationOutcome validate(byte[] resource, List<String> profiles, long timeoutMillis) {
+    long timeout = timeoutMillis > 0 && defaultTimeoutMillis > 0
+        ? Math.min(timeoutMillis, defaultTimeoutMillis)
+        : Math.max(timeoutMillis, defaultTimeoutMillis);
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
     Manager.FhirFormat fmt = FormatUtilities.determineFormat(resource);
     ByteArrayInputStream resourceStream = new ByteArrayInputStream(resource);
 
-    try {
-      Resource resourceObj = FormatUtilities.makeParser(fmt).parse(resource);
-      String metaProfiles = "[]";
-      if (resourceObj.hasMeta() && resourceObj.getMeta().hasProfile()) {
-        metaProfiles = resourceObj.getMeta().getProfile().toString();
+    boolean lazyIgsLeft = !lazyPackagesByProfile.isEmpty();
+    if (LOGGER.isInfoEnabled() || lazyIgsLeft || packageBudget.isEnabled()) {
+      ResourcePeek peek = ResourcePeek.of(resource, fmt);
+      if (LOGGER.isInfoEnabled()) {
+        LOGGER.info("Validating resource type={} profiles={} metaProfiles={}",
+            peek.getResourceType(), profiles, peek.getMetaProfiles());
+      }
+      // profiles claimed in meta.profile are validated against too, so their IGs are in use
+      packageBudget.touch(peek.getMetaProfiles());
+      if (lazyIgsLeft) {
+        List<String> used = new ArrayList<>(profiles);
+        used.addAll(peek.getMetaProfiles());
+        try {
+          loadLazyPackagesFor(used);
+        } catch (IOException | RuntimeException e) {
+          // validation goes ahead, and reports the profiles it couldn't find
+          LOGGER.warn("Could not load the IGs needed to validate a resource", e);
+        }
+      }
+    }
+
+    packageBudget.touch(profiles);
+
+    ValidationEnginePool pool = enginePool;
+    String cacheKey = null;
+    if (validationCache != null) {
+      cacheKey = cacheKey(resource, profiles, pool.getContentGeneration());
+      OperationOutcome cached = validationCache.get(cacheKey);
+      if (cached != null) {
+        return cached.copy();
       }
-      LOGGER.info("Validating resource with type: " + resourceObj.fhirType()
-          + ", selected profile: " + profiles.toString()
-          + " and meta.profile: " + metaProfiles);
-    } catch (Exception e) {
-      // do nothing - this is informational only, and it seems to happen often
+    }
+
+    int abandoned = abandonedCount.get();
+    if (abandoned >= maxAbandoned) {
+      throw new ValidatorBusyException(abandoned + " validations that ran past their timeout "
+          + "are still running, please retry later.");
     }
 
     OperationOutcome oo;
+    ValidationEngine engine = pool.borrow();
+    long start = System.nanoTime();
+    boolean handedOff = false;
     try {
-      oo = hl7Validator.validate(fmt, resourceStream, profiles);
+      if (timeout > 0) {
+        oo = validateBefore(deadline, timeout, pool, engine, fmt, resourceStream, profiles);
+      } else {
+        oo = engine.validate(fmt, resourceStream, profiles);
+      }
+      if (cacheKey != null) {
+        validationCache.put(cacheKey, oo.copy());
+      }
+    } catch (TimeoutException e) {
+      handedOff = true;
+      timeoutCount.increment();
+      LOGGER.warn(e.getMessage());
+      oo = serviceOutcome(IssueType.TIMEOUT, e.getMessage());
+    } catch (ValidatorBusyException e) {
+      throw e;
     } catch (Exception e) {
       // Add our own OperationOutcome for errors that break the ValidationEngine
-      OperationOutcome.IssueSeverity sev = OperationOutcome.IssueSeverity.FATAL;
-      OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent(
-                                                                                sev,
-                                                                                IssueType.STRUCTURE
-                                                                                );
-      issue.setDiagnostics(e.getMessage());
-      issue.setDetails(new CodeableConcept().setText(e.getMessage()));
-      issue.addExtension(
-                         "http://hl7.org/fhir/StructureDefinition/operationoutcome-issue-line",
-                         new IntegerType(1)
-                         );
-      issue.addExtension(
-                         "http://hl7.org/fhir/StructureDefinition/operationoutcome-issue-col",
-                         new IntegerType(1)
-                         );
-      issue.addExtension(
-                         "http://hl7.org/fhir/StructureDefinition/operationoutcome-issue-source",
-                         new CodeType("ValidationService")
-                         );
-      oo = new OperationOutcome(issue);
+      oo = serviceOutcome(IssueType.STRUCTURE, e.getMessage());
+    } finally {
+      long elapsed = System.nanoTime() - start;
+      if (!handedOff) {
+        pool.release(engine);
+      }
+      engineBusyNanos.add(elapsed);
+      recordValidationTime(profiles, elapsed);
     }
     return oo;
   }
 
+  /**
+   * Validates on a separate thread, waiting for the result only until the deadline. The HL7
+   * validator doesn't check for interruption, and neither do its terminology lookups, so a
+   * validation can't be stopped at the deadline. It is abandoned instead: it runs on, and when it
+   * finishes it returns its engine to the pool it was borrowed from.
+   *
+   * @param deadline the System.nanoTime() by which the result is needed
+   * @param timeoutMillis the timeout the deadline was computed from, for the message
+   * @param pool the pool the engine was borrowed from
+   * @return the validation result
+   * @throws TimeoutException if the deadline passed, in which case the engine is still in use
+   *     and is no longer the caller's to release
+   * @throws ValidatorBusyException if there is no thread to validate on
+   * @throws Exception if validation failed
+   */
+  private OperationOutcome validateBefore(
+      long deadline,
+      long timeoutMillis,
+      ValidationEnginePool pool,
+      ValidationEngine engine,
+      Manager.FhirFormat fmt,
+      InputStream resource,
+      List<String> profiles
+  ) throws Exception {
+    // set by whichever comes first: the validation finishing, or the caller giving up on it
+    AtomicBoolean settled = new AtomicBoolean();
+    Future<OperationOutcome> task;
+    try {
+      task = deadlineExecutor.submit(() -> {
+        try {
+          return engine.validate(fmt, resource, profiles);
+        } finally {
+          if (!settled.compareAndSet(false, true)) {
+            abandonedCount.decrementAndGet();
+            pool.release(engine);
+            LOGGER.info("An abandoned validation finished and returned its engine");
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      throw new ValidatorBusyException("Too many validations are running, please retry later.");
+    }
+    try {
+      try {
+        return task.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException | InterruptedException e) {
+        abandonedCount.incrementAndGet();
+        if (settled.compareAndSet(false, true)) {
+          if (e instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+          }
+          throw new TimeoutException("Validation did not finish within " + timeoutMillis
+              + " ms, so the result is incomplete.");
+        }
+        // finished just as the deadline passed, so the result is complete after all
+        abandonedCount.decrementAndGet();
+        return getUninterruptibly(task);
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private static <T> T getUninterruptibly(Future<T> future) throws ExecutionException {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return future.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Builds an OperationOutcome for a problem the validation service ran into itself, rather than
+   * a problem with the resource.
+   *
+   * @param type the type of the issue
+   * @param message describes the issue
+   * @return an OperationOutcome with a single fatal issue
+   */
+  private static OperationOutcome serviceOutcome(IssueType type, String message) {
+    OperationOutcome.IssueSeverity sev = OperationOutcome.IssueSeverity.FATAL;
+    OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent(
+                                                                              sev,
+                                                                              type
+                                                                              );
+    issue.setDiagnostics(message);
+    issue.setDetails(new CodeableConcept().setText(message));
+    issue.addExtension(
+                       "http://hl7.org/fhir/StructureDefinition/operationoutcome-issue-line",
+                       new IntegerType(1)
+                       );
+    issue.addExtension(
+                       "http://hl7.org/fhir/StructureDefinition/operationoutcome-issue-col",
+                       new IntegerType(1)
+                       );
+    issue.addExtension(
+                       "http://hl7.org/fhir/StructureDefinition/operationoutcome-issue-source",
+                       new CodeType("ValidationService")
+                       );
+    return new OperationOutcome(issue);
+  }
+
+  private void recordValidationTime(List<String> profiles, long nanos) {
+    Metrics metrics = Metrics.getInstance();
+    if (profiles.isEmpty()) {
+      metrics.histogram(VALIDATION_TIME_METRIC, VALIDATION_TIME_HELP, "profile", "").record(nanos);
+    }
+    for (String profile : profiles) {
+      metrics.histogram(VALIDATION_TIME_METRIC, VALIDATION_TIME_HELP, "profile", profile)
+          .record(nanos);
+    }
+  }
+
+  /**
+   * Builds a key identifying a validation request: the resource's content, the profiles it is
+   * validated against, and the content that was loaded into the validator at the time.
+   *
+   * @param resource a byte array representation of a FHIR resource
+   * @param profiles a list of profile URLs to validate against
+   * @param generation the generation of loaded content the resource is validated with
+   * @return the cache key
+   */
+  private String cacheKey(byte[] resource, List<String> profiles, long generation) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    List<String> sortedProfiles = new ArrayList<>(profiles);
+    Collections.sort(sortedProfiles);
+    return Base64.getEncoder().encodeToString(digest.digest(resource))
+        + "|" + String.join(",", sortedProfiles)
+        + "|" + generation;
+  }
+
+  /**
+   * Summarizes the validation result cache.
+   *
+   * @return a Map of statistic name to value, which is empty if the cache is disabled
+   */
+  public Map<String, Long> getValidationCacheStats() {
+    if (validationCache == null) {
+      return new HashMap<>();
+    }
+    return validationCache.getStats();
+  }
+
+  /**
+   * Summarizes the pool of validation engines.
+   *
+   * @return a Map of statistic name to value
+   */
+  public Map<String, Long> getEnginePoolStats() {
+    ValidationEnginePool pool = enginePool;
+    Map<String, Long> stats = new LinkedHashMap<>();
+    stats.put("size", (long) pool.size());
+    stats.put("available", (long) pool.available());
+    stats.put("busyNanos", engineBusyNanos.sum());
+    stats.put("contentGeneration", pool.getContentGeneration());
+    stats.put("timeouts", timeoutCount.sum());
+    stats.put("abandoned", (long) abandonedCount.get());
+    return stats;
+  }
+
+  /**
+   * Summarizes the IGs loaded at runtime that count against the IG budget.
+   *
+   * @return a Map of statistic name to value, which is empty if there is no budget
+   */
+  public Map<String, Long> getIgBudgetStats() {
+    Map<String, Long> stats = new LinkedHashMap<>();
+    if (packageBudget.isEnabled()) {
+      stats.put("loaded", (long) packageBudget.size());
+      stats.put("loadedBytes", packageBudget.bytes());
+      stats.put("evicted", (long) evictedPackages.size());
+      stats.put("evictions", evictionCount.sum());
+    }
+    return stats;
+  }
+
+  /**
+   * Validates each of the given resources against the same list of profiles. The resources are
+   * validated in parallel, on one fewer thread than there are validation engines, so single
+   * validation requests can still get an engine while batches are running.
+   *
+   * @param resources byte array representations of FHIR resources
+   * @param profiles a list of profile URLs to validate every resource against
+   * @return one pending OperationOutcome per resource, in the same order as the input
+   */
+  public List<CompletableFuture<OperationOutcome>> validateAll(
+      List<byte[]> resources,
+      List<String> profiles
+  ) {
+    return validateAll(resources, profiles, 0);
+  }
+
+  /**
+   * Validates each of the given resources against the same list of profiles, with a deadline
+   * for each resource as for {@link #validate(byte[], List, long)}.
+   *
+   * @param resources byte array representations of FHIR resources
+   * @param profiles a list of profile URLs to validate every resource against
+   * @param timeoutMillis how long the caller allows for each resource, or 0 for the default
+   * @return one pending OperationOutcome per resource, in the same order as the input
+   */
+  public List<CompletableFuture<OperationOutcome>> validateAll(
+      List<byte[]> resources,
+      List<String> profiles,
+      long timeoutMillis
+  ) {
+    return resources
+        .stream()
+        .map(resource -> validateAsync(resource, profiles, timeoutMillis))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Tells how many resources from batches are validated at a time.
+   *
+   * @return the number of threads that validate resources from batches
+   */
+  public int getBatchParallelism() {
+    return batchThreads;
+  }
+
+  /**
+   * Schedules the given resource for validation on the batch executor.
+   *
+   * @param resource a byte array representation of a FHIR resource
+   * @param profiles a list of profile URLs to validate against
+   * @return the pending OperationOutcome for the resource
+   */
+  public CompletableFuture<OperationOutcome> validateAsync(byte[] resource, List<String> profiles) {
+    return validateAsync(resource, profiles, 0);
+  }
+
+  /**
+   * Schedules the given resource for validation on the batch executor, with a deadline as for
+   * {@link #validate(byte[], List, long)}. The deadline starts once validation starts.
+   *
+   * @param resource a byte array representation of a FHIR resource
+   * @param profiles a list of profile URLs to validate against
+   * @param timeoutMillis how long the caller allows for validation, or 0 for the default
+   * @return the pending OperationOutcome for the resource
+   */
+  public CompletableFuture<OperationOutcome> validateAsync(
+      byte[] resource,
+      List<String> profiles,
+      long timeoutMillis
+  ) {
+    return CompletableFuture.supplyAsync(
+        () -> validate(resource, profiles, timeoutMillis), batchExecutor);
+  }
+
   /**
    * Provides a map of known IGs that can be retrieved and loaded.
    *
    * @return a map containing each known IG ID and its corresponding canonical URL.
    */
-  public Map<String, String> getKnownIGs() throws IOException {
+  public Map<String, String> getKnownIGs() {
     Map<String, String> igs = new HashMap<>();
     // Add known custom IGs
-    for (Map.Entry<String, NpmPackage> e : loadedPackages.entrySet()) {
-      String id = e.getKey().split("#")[0];
-      String canonical = e.getValue().canonical();
-      igs.put(id, canonical);
+    for (Map.Entry<String, PackageManifest> e : loadedPackages.latest().entrySet()) {
+      if (e.getValue().getCanonical() != null) {
+        igs.put(e.getKey(), e.getValue().getCanonical());
+      }
+    }
+    // Add bundled IGs that load on first use, and IGs that were evicted
+    for (Map.Entry<String, PackageManifest> e : lazyPackages.latest().entrySet()) {
+      if (e.getValue().getCanonical() != null) {
+        igs.putIfAbsent(e.getKey(), e.getValue().getCanonical());
+      }
     }
-    // Add IGs known to the package manager
-    for (PackageServer next : packageManager.getPackageServers()) {
-      // https://github.com/hapifhir/org.hl7.fhir.core/blob/6.2.8/org.hl7.fhir.utilities/src/main/java/org/hl7/fhir/utilities/npm/FilesystemPackageCacheManager.java#L585
-      listSpecs(igs, next);
+    // Add IGs known to the package servers
+    for (Map.Entry<String, String> e : packageRegistry.getPackages().entrySet()) {
+      igs.putIfAbsent(e.getKey(), e.getValue());
     }
 
     return igs;
   }
 
-  // copied from
-  // https://github.com/hapifhir/org.hl7.fhir.core/blob/6.2.8/org.hl7.fhir.utilities/src/main/java/org/hl7/fhir/utilities/npm/FilesystemPackageCacheManager.java#L318
-  private void listSpecs(Map<String, String> specList, PackageServer server) throws IOException {
-    PackageClient pc = new PackageClient(server);
-    List<PackageInfo> matches = pc.search(null, null, null, false);
-    for (PackageInfo m : matches) {
-      if (!specList.containsKey(m.getId())) {
-        specList.put(m.getId(), m.getUrl());
-      }
-    }
-  }
-
   /**
    * Load a profile into the validator.
    *
@@ -253,7 +1105,15 @@ public class Validator {
   public void loadProfile(byte[] profile) throws IOException {
     Manager.FhirFormat fmt = FormatUtilities.determineFormat(profile);
     Resource resource = FormatUtilities.makeParser(fmt).parse(profile);
-    hl7Validator.getContext().cacheResource(resource);
+    applyContentChange(engine -> {
+      engine.getContext().cacheResource(resource);
+      // loaded profiles are small, so they are kept even when there is an IG budget
+      recordLoad("profile#" + contentGeneration.get(), next -> {
+        next.getContext().cacheResource(resource);
+        return null;
+      });
+      return null;
+    });
     if (resource instanceof StructureDefinition) {
       StructureDefinition sd = (StructureDefinition)resource;
       LOGGER.info("Loaded profile from file, url: " + sd.getUrl() + " version: " + sd.getVersion());
@@ -261,32 +1121,38 @@ public class Validator {
       LOGGER.info("Loaded resource from file but it wasn't a StructureDefinition, it was a "
           + resource.fhirType());
     }
+    updateProfilesByIg();
   }
 
-  /**
-   * Finds any custom package that fits the given id and (possibly null) version.
-   *
-   * @param id the ID of the custom package
-   * @param version the version of the custom package, or null to return the first match
-   * @return a matching custom IG package, or null if no matching package was found
-   */
-  private NpmPackage findCustomPackage(String id, String version) {
-    String idRegex = "^" + id + "#" + (version != null ? version : ".*") + "$";
-    for (Map.Entry<String, NpmPackage> entry : loadedPackages.entrySet()) {
-      if (entry.getKey().matches(idRegex)) {
-        return entry.getValue();
-      }
+  private IgResponse getIg(String id, String version) throws IOException {
+    PackageManifest manifest = loadedPackages.find(id, version);
+    if (manifest != null) {
+      return toIgResponse(manifest);
     }
-    return null;
+    // Fallback to packages from packages.fhir.org if no loaded packages match
+    return IgResponse.fromPackage(packageManager.loadPackage(id, version));
   }
 
-  private IgResponse getIg(String id, String version) throws IOException {
-    NpmPackage npm = findCustomPackage(id, version);
-    // Fallback to packages from packages.fhir.org if no custom packages match
-    if (npm == null) {
-      npm = packageManager.loadPackage(id, version);
+  /**
+   * Describes each IG package that has been loaded into the validator, including an estimate of
+   * the memory its content takes up.
+   *
+   * @return one map per package, with its id, version, canonical URL, number of profiles,
+   *     dependencies and the size in bytes of its unpacked files
+   */
+  public List<Map<String, Object>> getLoadedIgs() {
+    List<Map<String, Object>> igs = new ArrayList<>();
+    for (PackageManifest manifest : loadedPackages.all()) {
+      Map<String, Object> ig = new LinkedHashMap<>();
+      ig.put("id", manifest.getId());
+      ig.put("version", manifest.getVersion());
+      ig.put("canonical", manifest.getCanonical());
+      ig.put("profiles", manifest.getProfiles().size());
+      ig.put("dependencies", manifest.getDependencies());
+      ig.put("contentBytes", manifest.getContentBytes());
+      igs.add(ig);
     }
-    return IgResponse.fromPackage(npm);
+    return igs;
   }
 
   /**
@@ -295,25 +1161,46 @@ public class Validator {
    * @param id the package ID of the FHIR IG to be loaded
    * @param version the package version of the FHIR IG to be loaded
    * @return an IgResponse representing the package that was loaded
+   * @throws IgNotFoundException if there is no such package
    */
   public IgResponse loadIg(String id, String version) throws Exception {
-    NpmPackage npm = findCustomPackage(id, version);
-    // Fallback to packages from packages.fhir.org if no custom packages match
-    if (npm == null) {
-      hl7Validator
+    PackageManifest loaded = loadedPackages.find(id, version);
+    if (loaded != null) {
+      return toIgResponse(loaded);
+    }
+    PackageManifest bundled = lazyPackages.find(id, version);
+    if (bundled != null) {
+      loadLazyPackage(bundled, new HashSet<>());
+      return toIgResponse(bundled);
+    }
+    // Fallback to packages from packages.fhir.org if no loaded packages match
+    NpmPackage npm = applyContentChange(engine -> {
+      engine
           .getIgLoader()
           .loadIg(
-                  hl7Validator.getIgs(),
-                  hl7Validator.getBinaries(),
+                  engine.getIgs(),
+                  engine.getBinaries(),
                   id + (version != null ? "#" + version : ""),
                   true
                   );
-      npm = packageManager.loadPackage(id, version);
-      if (npm != null) {
-        LOGGER.info("Loaded IG by identifier: " + npm.id() + "#" + npm.version());
+      NpmPackage fetched = packageManager.loadPackage(id, version);
+      if (fetched == null) {
+        // thrown before the new engine generation is published, so nothing changes
+        throw new IgNotFoundException("IG " + id + (version != null ? "#" + version : "")
+            + " could not be found");
       }
-    }
-    return IgResponse.fromPackage(npm);
+      String ref = fetched.id() + "#" + fetched.version();
+      recordLoad(ref, next -> {
+        next.getIgLoader().loadIg(next.getIgs(), next.getBinaries(), ref, true);
+        return null;
+      });
+      return fetched;
+    });
+    PackageManifest manifest = retain(npm, null);
+    LOGGER.info("Loaded IG by identifier: " + manifest.getId() + "#" + manifest.getVersion());
+    updateProfilesByIg();
+    addToBudget(manifest);
+    return toIgResponse(manifest);
   }
 
   /**
@@ -323,25 +1210,76 @@ public class Validator {
    * @return an IgResponse representing the package that was loaded
    */
   public IgResponse loadPackage(byte[] content) throws Exception {
-    File temp = File.createTempFile("package", ".tgz");
-    temp.deleteOnExit();
+    return loadPackage(new ByteArrayInputStream(content));
+  }
+
+  /**
+   * Load a Gzipped IG into the validator, reading it from a stream. The package is decompressed
+   * once, as it is read, and the same unpacked package is loaded into the engine. Only the
+   * package's manifest is kept for later lookups. When there is an IG budget, the package is
+   * first copied to disk, so that it can be loaded again after being evicted.
+   *
+   * @param content a stream of the Gzip-encoded contents of the IG package to be loaded
+   * @return an IgResponse representing the package that was loaded
+   */
+  public IgResponse loadPackage(InputStream content) throws Exception {
+    File file = uploadDir != null ? saveUpload(content) : null;
+    NpmPackage npm = file != null ? readPackage(file) : NpmPackage.fromPackage(content);
+    applyContentChange(engine -> {
+      engine.getIgLoader().loadPackage(npm, true);
+      recordLoad(npm.id() + "#" + npm.version(), next -> {
+        next.getIgLoader().loadPackage(readPackage(file), true);
+        return null;
+      });
+      return null;
+    });
+    PackageManifest manifest = retain(npm, file);
+    forgetLazyPackage(manifest);
+    LOGGER.info("Loaded IG from tgz upload: " + manifest.getId() + "#" + manifest.getVersion());
+    updateProfilesByIg();
+    addToBudget(manifest);
+    return toIgResponse(manifest);
+  }
+
+  /**
+   * Stops loading a package on use once it has been uploaded, whether it was bundled for lazy
+   * loading or evicted earlier, so that the copy indexed for lazy loading is never loaded on top
+   * of the upload.
+   *
+   * @param manifest the package that was uploaded
+   */
+  private void forgetLazyPackage(PackageManifest manifest) {
+    String key = manifest.getId() + "#" + manifest.getVersion();
+    lazyPackages.remove(manifest.getId(), manifest.getVersion());
+    lazyPackagesByProfile.values().removeIf(lazy ->
+        lazy.getId().equals(manifest.getId()) && lazy.getVersion().equals(manifest.getVersion()));
+    lazyLoads.remove(key);
+    evictedPackages.remove(key);
+  }
+
+  /**
+   * Copies an uploaded package to disk, named after the package's ID and version so that
+   * uploading the same package again replaces the copy.
+   *
+   * @param content a stream of the Gzip-encoded contents of the package
+   * @return the copy
+   * @throws IOException if the package could not be copied or read
+   */
+  private File saveUpload(InputStream content) throws IOException {
+    File temp = File.createTempFile("upload", ".tgz", uploadDir);
     try {
-      FileUtils.writeByteArrayToFile(temp, content);
-      hl7Validator
-          .getIgLoader()
-          .loadIg(
-                  hl7Validator.getIgs(),
-                  hl7Validator.getBinaries(),
-                  temp.getCanonicalPath(),
-                  true
-                  );
+      Files.copy(content, temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      PackageManifest manifest = PackageManifest.read(temp);
+      if (manifest == null || manifest.getId() == null || manifest.getVersion() == null) {
+        throw new IOException("The uploaded package has no package.json or .index.json");
+      }
+      File file = new File(uploadDir, manifest.getId() + "-" + manifest.getVersion() + ".tgz");
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      file.deleteOnExit();
+      return file;
     } finally {
       temp.delete();
     }
-    NpmPackage npm = NpmPackage.fromPackage(new ByteArrayInputStream(content));
-    loadedPackages.put(npm.id() + "#" + npm.version(), npm);
-    LOGGER.info("Loaded IG from tgz upload: " + npm.id() + "#" + npm.version());
-    return IgResponse.fromPackage(npm);
   }
 
   /**
@@ -350,20 +1288,31 @@ public class Validator {
    * @return a mapping from IG URL to a list of profile URLs supported by the IG.
    */
   public Map<String, List<String>> getProfilesByIg() {
-    List<ImplementationGuide> igs = hl7Validator.getContext().allImplementationGuides();
-    return igs
-        .stream()
-        .collect(Collectors.toMap(
-            ImplementationGuide::getPackageId,
-            ig -> {
-              try {
-                return getIg(ig.getPackageId(), ig.getVersion()).getProfiles();
-              } catch (IOException e) {
-                return new ArrayList<>();
-              }
-            },
-            (existing, replacement) -> existing
-        ));
+    return profilesByIg;
+  }
+
+  /**
+   * Adds any IGs that have been loaded since the last call to the profiles-by-IG index, and
+   * publishes a new snapshot of it for {@link #getProfilesByIg()}.
+   */
+  private synchronized void updateProfilesByIg() {
+    Map<String, List<String>> snapshot = new HashMap<>(profilesByIgIndex);
+    for (ImplementationGuide ig : primary().getContext().allImplementationGuides()) {
+      String id = ig.getPackageId();
+      if (id == null || snapshot.containsKey(id)) {
+        continue;
+      }
+      try {
+        List<String> profiles =
+            Collections.unmodifiableList(getIg(id, ig.getVersion()).getProfiles());
+        profilesByIgIndex.put(id, profiles);
+        snapshot.put(id, profiles);
+      } catch (IOException e) {
+        // not remembered, so that the lookup is tried again after the next load
+        snapshot.put(id, Collections.emptyList());
+      }
+    }
+    profilesByIg = Collections.unmodifiableMap(snapshot);
   }
 
   /**
@@ -377,25 +1326,75 @@ public class Validator {
     loadProfile(profile);
   }
 
+  /**
+   * Saves the terminology server's CapabilityStatement in the terminology cache. The engine only
+   * saves the server's TerminologyCapabilities, and running without the server later replays both.
+   */
+  private static void cacheCapabilityStatement(ValidationEngine engine) {
+    ITerminologyClient client = engine.getContext().getTxClientManager().getMasterClient();
+    if (client == null) {
+      return;
+    }
+    try {
+      engine.getContext().getTxCache()
+          .cacheCapabilityStatement(client.getAddress(), client.getCapabilitiesStatementQuick());
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn("Could not cache the capabilities of " + client.getAddress(), e);
+    }
+  }
+
+  /**
+   * Validates codes against the answers a terminology server gave earlier, saved in the given
+   * cache, when there is no terminology server to ask.
+   */
+  private void useCachedTerminology(
+      ValidationEngine engine,
+      String txCacheDir,
+      FhirPublication version
+  ) throws URISyntaxException {
+    // the address the server's answers were saved under, as the engine's own client gives it
+    String address = new TerminologyClientFactory(version)
+        .makeClient("tx", EnvUtils.getString("TX_SERVER_URL", "http://tx.fhir.org"), null, null)
+        .getAddress();
+    try {
+      TerminologyCache cache = CachedTerminologyClient.readOnlyCache(txCacheDir);
+      CachedTerminologyClient client = new CachedTerminologyClient(address, cache);
+      engine.getContext().initTxCache(cache);
+      engine.getContext().setNoTerminologyServer(false);
+      engine.getContext().connectToTSServer(new TerminologyClientFactory(version), client, false);
+      LOGGER.info("Validating codes against the terminology cache in " + txCacheDir);
+    } catch (IOException | RuntimeException e) {
+      engine.getContext().initTxCache((TerminologyCache) null);
+      engine.getContext().setNoTerminologyServer(true);
+      LOGGER.warn("Not using the terminology cache in " + txCacheDir + ": " + e.getMessage());
+    }
+  }
+
   private byte[] loadResourceFromFile(String src) throws IOException {
     ClassLoader classLoader = getClass().getClassLoader();
     URL file = classLoader.getResource(src);
     return IOUtils.toByteArray(file);
   }
 
-  private String getTxServerUrl() {
+  private static String getTxServerUrl() {
     if (disableTxValidation()) {
       return null;
     }
 
-    if (System.getenv("TX_SERVER_URL") != null) {
-      return System.getenv("TX_SERVER_URL");
-    } else {
-      return "http://tx.fhir.org";
-    }
+    return EnvUtils.getString("TX_SERVER_URL", "http://tx.fhir.org");
+  }
+
+  private String getPackageRegistryCacheFile() {
+    return EnvUtils.getString("PACKAGE_REGISTRY_CACHE",
+        Paths.get(System.getProperty("user.home"), ".fhir", "package-registry.json").toString());
+  }
+
+  private String getTxCacheDir() {
+    return EnvUtils.getString("TX_CACHE_DIR", null);
   }
 
-  private boolean disableTxValidation() {
-    return System.getenv("DISABLE_TX") != null;
+  private static boolean disableTxValidation() {
+    // any value turns terminology validation off, even "false"
+    return EnvUtils.getString("DISABLE_TX", null) != null;
   }
 }
@@ -0,0 +1,11 @@
+package org.mitre.inferno;
+
+/**
+ * Thrown when no validation engine becomes available within the configured wait time.
+ */
+public class ValidatorBusyException extends RuntimeException {
+
+  public ValidatorBusyException(String message) {
+    super(message);
+  }
+}
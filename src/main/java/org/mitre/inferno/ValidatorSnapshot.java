@@ -0,0 +1,196 @@
+package org.mitre.inferno;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.utilities.VersionUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves and restores the conformance resources that the bundled IG packages add to the validator,
+ * after snapshots have been generated for them, along with the manifests of the packages and the
+ * packages the engine recorded as loaded.
+ * <p>
+ * Restoring a snapshot skips unpacking the packages, resolving their dependencies, converting
+ * their resources and generating snapshots. A snapshot is only used when its fingerprint, which
+ * covers the IG packages and the validator versions, matches the current installation.
+ * </p>
+ */
+class ValidatorSnapshot {
+  private static final String MAGIC = "inferno-validator-snapshot";
+  private static final int FORMAT_VERSION = 2;
+  private static final Logger LOGGER = LoggerFactory.getLogger(ValidatorSnapshot.class);
+
+  private final List<PackageManifest> packages;
+  private final List<String> loadedPackages;
+  private final List<? extends Resource> resources;
+
+  /**
+   * Creates a snapshot of the content the bundled IGs added to an engine.
+   *
+   * @param packages the manifests of the bundled IG packages
+   * @param loadedPackages the "id#version" of each package the engine's context recorded as
+   *     loaded, including dependencies of the bundled packages
+   * @param resources the resources the packages added
+   */
+  ValidatorSnapshot(
+      List<PackageManifest> packages,
+      List<String> loadedPackages,
+      List<? extends Resource> resources
+  ) {
+    this.packages = packages;
+    this.loadedPackages = loadedPackages;
+    this.resources = resources;
+  }
+
+  List<PackageManifest> getPackages() {
+    return packages;
+  }
+
+  List<String> getLoadedPackages() {
+    return loadedPackages;
+  }
+
+  List<? extends Resource> getResources() {
+    return resources;
+  }
+
+  /**
+   * Computes a fingerprint of the given IG packages and the software versions in use.
+   *
+   * @param igFiles the bundled IG packages
+   * @return a string that changes whenever a snapshot of these packages would be invalid
+   */
+  static String fingerprint(File[] igFiles) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    StringBuilder description = new StringBuilder()
+        .append(VersionUtil.getVersion()).append('\n')
+        .append(Version.getVersion()).append('\n');
+    if (igFiles != null) {
+      for (File igFile : igFiles) {
+        description.append(igFile.getName()).append('|')
+            .append(igFile.length()).append('|')
+            .append(igFile.lastModified()).append('\n');
+      }
+    }
+    byte[] hash = digest.digest(description.toString().getBytes(StandardCharsets.UTF_8));
+    return Base64.getEncoder().encodeToString(hash);
+  }
+
+  /**
+   * Writes this snapshot, replacing any existing snapshot atomically.
+   *
+   * @param target the snapshot file
+   * @param fingerprint the fingerprint of the installation the content came from
+   * @throws IOException if the snapshot cannot be written
+   */
+  void write(File target, String fingerprint) throws IOException {
+    File parent = target.getAbsoluteFile().getParentFile();
+    File temp = File.createTempFile("snapshot", ".tmp", parent);
+    try {
+      JsonParser parser = new JsonParser();
+      try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(
+          new BufferedOutputStream(new FileOutputStream(temp))))) {
+        out.writeUTF(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(fingerprint);
+        out.writeInt(packages.size());
+        for (PackageManifest manifest : packages) {
+          byte[] json = manifest.toJson().getBytes(StandardCharsets.UTF_8);
+          out.writeInt(json.length);
+          out.write(json);
+        }
+        out.writeInt(loadedPackages.size());
+        for (String loaded : loadedPackages) {
+          out.writeUTF(loaded);
+        }
+        out.writeInt(resources.size());
+        for (Resource resource : resources) {
+          byte[] json = parser.composeBytes(resource);
+          out.writeInt(json.length);
+          out.write(json);
+        }
+      }
+      Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      temp.delete();
+    }
+    LOGGER.info("Wrote validator snapshot with " + packages.size() + " IGs and "
+        + resources.size() + " resources to " + target);
+  }
+
+  /**
+   * Reads a snapshot, if it matches the given fingerprint.
+   *
+   * @param source the snapshot file
+   * @param fingerprint the fingerprint of the current installation
+   * @return the saved snapshot, or null if there is no usable snapshot
+   */
+  static ValidatorSnapshot read(File source, String fingerprint) {
+    if (!source.isFile()) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(new GZIPInputStream(
+        new BufferedInputStream(new FileInputStream(source))))) {
+      if (!MAGIC.equals(in.readUTF()) || in.readInt() != FORMAT_VERSION) {
+        LOGGER.warn("Ignoring " + source + " because it is not a validator snapshot, or was "
+            + "written by another version of the service");
+        return null;
+      }
+      if (!fingerprint.equals(in.readUTF())) {
+        LOGGER.info("Ignoring validator snapshot " + source + " because the IGs have changed");
+        return null;
+      }
+      int packageCount = in.readInt();
+      List<PackageManifest> packages = new ArrayList<>(packageCount);
+      for (int i = 0; i < packageCount; i++) {
+        byte[] json = new byte[in.readInt()];
+        in.readFully(json);
+        packages.add(PackageManifest.fromJson(new String(json, StandardCharsets.UTF_8)));
+      }
+      int loadedCount = in.readInt();
+      List<String> loadedPackages = new ArrayList<>(loadedCount);
+      for (int i = 0; i < loadedCount; i++) {
+        loadedPackages.add(in.readUTF());
+      }
+      JsonParser parser = new JsonParser();
+      int count = in.readInt();
+      List<Resource> resources = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        byte[] json = new byte[in.readInt()];
+        in.readFully(json);
+        resources.add(parser.parse(json));
+      }
+      LOGGER.info("Read validator snapshot with " + packageCount + " IGs and " + count
+          + " resources from " + source);
+      return new ValidatorSnapshot(packages, loadedPackages, resources);
+    } catch (Exception e) {
+      LOGGER.warn("Ignoring unreadable validator snapshot " + source, e);
+      return null;
+    }
+  }
+}
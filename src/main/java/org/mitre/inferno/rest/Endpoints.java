@@ -10,6 +10,7 @@ import static spark.Spark.unmap;
 
 import com.google.gson.Gson;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -59,11 +60,24 @@ public class Endpoints {
    * @throws Exception if operation outcome cannot be parsed
    */
   private static String generateWaitMessage() throws Exception {
+    return generateOperationOutcome(
+        IssueType.INCOMPLETE,
+        "Validator still loading... please wait.");
+  }
+
+  /**
+   * Create a serialized OperationOutcome with a single error issue.
+   *
+   * @param type the issue type to report
+   * @param message the diagnostic message to report
+   * @return the JSON representation of the OperationOutcome
+   * @throws IOException if operation outcome cannot be serialized
+   */
+  static String generateOperationOutcome(IssueType type, String message) throws IOException {
     OperationOutcome.IssueSeverity sev = OperationOutcome.IssueSeverity.ERROR;
     OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent(
         sev,
-        IssueType.INCOMPLETE);
-    String message = "Validator still loading... please wait.";
+        type);
     issue.setDiagnostics(message);
     issue.setDetails(new CodeableConcept().setText(message));
     issue.addExtension(
@@ -158,6 +172,9 @@ public class Endpoints {
     if (pathEvaluator != null) {
       FHIRPathEndpoint.getInstance(pathEvaluator);
     }
+
+    MetricsEndpoint.getInstance(validator, pathEvaluator);
+    RequestLimits.getInstance();
   }
 
   /**
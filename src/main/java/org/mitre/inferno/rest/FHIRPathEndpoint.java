@@ -1,11 +1,24 @@
 package org.mitre.inferno.rest;
 
+import static org.mitre.inferno.rest.Endpoints.TO_JSON;
+import static spark.Spark.get;
+import static spark.Spark.halt;
 import static spark.Spark.post;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r5.model.OperationOutcome.IssueType;
 import org.mitre.inferno.FHIRPathEvaluator;
 import org.mitre.inferno.JsonParser;
+import org.mitre.inferno.utils.SparkUtils;
 
 public class FHIRPathEndpoint {
   private static FHIRPathEndpoint fhirPathEndpoint = null;
@@ -34,13 +47,65 @@ public class FHIRPathEndpoint {
    */
   private void createRoutes() {
     post("/evaluate", (req, res) -> {
+      Base rootElement = new JsonParser().parse(req.body(), req.queryParams("type"));
+      List<Base> result = pathEvaluator.evaluate(rootElement, req.queryParams("path"));
       res.type("application/fhir+json");
-      return evaluate(req.body(), req.queryParams("type"), req.queryParams("path"));
+      FHIRPathEvaluator.writeResult(result, res.raw().getOutputStream());
+      return "";
     });
+
+    post("/evaluate/batch", (req, res) -> {
+      String[] paths = req.queryParamsValues("path");
+      if (paths == null || paths.length == 0) {
+        res.type("application/fhir+json");
+        halt(400, Endpoints.generateOperationOutcome(IssueType.INVALID,
+            "At least one path query parameter is required."));
+      }
+      String type = req.queryParams("type");
+      OutputStream out = res.raw().getOutputStream();
+      if (isNdjson(req.contentType())) {
+        res.type("application/fhir+ndjson");
+        evaluateNdjson(SparkUtils.getUnbufferedInputStream(req), type, Arrays.asList(paths), out);
+      } else {
+        Base rootElement = new JsonParser().parse(req.body(), type);
+        Map<String, List<Base>> results =
+            pathEvaluator.evaluateAll(rootElement, Arrays.asList(paths));
+        res.type("application/fhir+json");
+        FHIRPathEvaluator.writeResults(results, out);
+      }
+      return "";
+    });
+
+    get("/fhirpath-cache", (req, res) -> pathEvaluator.getExpressionCacheStats(), TO_JSON);
+  }
+
+  private boolean isNdjson(String contentType) {
+    return contentType != null && contentType.toLowerCase().contains("ndjson");
   }
 
-  private String evaluate(String body, String type, String path) throws IOException {
-    Base rootElement = new JsonParser().parse(body, type);
-    return pathEvaluator.evaluateToString(rootElement, path);
+  /**
+   * Evaluates every expression against each non-blank line of an NDJSON body, writing one line
+   * of results per input line as soon as it is ready.
+   *
+   * @param body the NDJSON request body
+   * @param type the FHIR type of each line, for lines that are not resources
+   * @param paths the FHIRPath expressions
+   * @param out the response stream
+   * @throws IOException if the body cannot be read or the response cannot be written
+   */
+  private void evaluateNdjson(InputStream body, String type, List<String> paths, OutputStream out)
+      throws IOException {
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+    JsonParser parser = new JsonParser();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (!line.isBlank()) {
+        Base rootElement = parser.parse(line, type);
+        FHIRPathEvaluator.writeResults(pathEvaluator.evaluateAll(rootElement, paths), out);
+        out.write('\n');
+        out.flush();
+      }
+    }
   }
 }
@@ -0,0 +1,109 @@
+package org.mitre.inferno.rest;
+
+import static spark.Spark.afterAfter;
+import static spark.Spark.before;
+import static spark.Spark.get;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.mitre.inferno.FHIRPathEvaluator;
+import org.mitre.inferno.Validator;
+import org.mitre.inferno.utils.Metrics;
+
+public class MetricsEndpoint {
+  private static final String START_ATTRIBUTE = "org.mitre.inferno.requestStart";
+  // routes with path parameters are reported by their pattern rather than each distinct path
+  private static final String IG_ROUTE = "/igs/:id";
+  private static final Set<String> ROUTES = new HashSet<>(Arrays.asList(
+      "/validate", "/validate/batch", "/validation-cache", "/resources", "/profiles",
+      "/profiles-by-ig", "/igs", "/igs/loaded", "/evaluate", "/evaluate/batch", "/fhirpath-cache",
+      "/version", "/metrics"));
+  private static MetricsEndpoint metricsEndpoint = null;
+  private final Metrics metrics = Metrics.getInstance();
+
+  private MetricsEndpoint(Validator validator, FHIRPathEvaluator evaluator) {
+    registerGauges(validator, evaluator);
+    createRoutes();
+  }
+
+  /**
+   * Get the existing MetricsEndpoint or create one if it does not already exist.
+   *
+   * @param validator the Validator to report on, or null
+   * @param evaluator the FHIRPathEvaluator to report on, or null
+   * @return the singleton MetricsEndpoint
+   */
+  public static MetricsEndpoint getInstance(Validator validator, FHIRPathEvaluator evaluator) {
+    if (metricsEndpoint == null) {
+      metricsEndpoint = new MetricsEndpoint(validator, evaluator);
+    }
+    return metricsEndpoint;
+  }
+
+  /**
+   * Times every request and creates the route for scraping the metrics.
+   */
+  private void createRoutes() {
+    before((req, res) -> req.attribute(START_ATTRIBUTE, System.nanoTime()));
+
+    afterAfter((req, res) -> {
+      Long start = req.attribute(START_ATTRIBUTE);
+      if (start != null) {
+        metrics.histogram("http_request_duration_seconds", "Time spent handling requests",
+            "method", req.requestMethod(), "route", normalizeRoute(req.pathInfo()))
+            .record(System.nanoTime() - start);
+      }
+    });
+
+    get("/metrics", (req, res) -> {
+      res.type("text/plain; version=0.0.4; charset=utf-8");
+      return metrics.scrape();
+    });
+  }
+
+  private void registerGauges(Validator validator, FHIRPathEvaluator evaluator) {
+    metrics.registerJvmMetrics();
+    if (validator != null) {
+      metrics.gauge("validator_engines", "Validation engines in the pool",
+          () -> validator.getEnginePoolStats().get("size"));
+      metrics.gauge("validator_engines_available", "Validation engines waiting for a request",
+          () -> validator.getEnginePoolStats().get("available"));
+      metrics.counter("validator_engine_busy_seconds_total", "Time engines spent validating",
+          () -> validator.getEnginePoolStats().get("busyNanos") / 1e9);
+      metrics.counter("validator_timeouts_total", "Validations abandoned at their deadline",
+          () -> validator.getEnginePoolStats().get("timeouts"));
+      metrics.gauge("validator_abandoned_validations",
+          "Validations past their deadline that are still running",
+          () -> validator.getEnginePoolStats().get("abandoned"));
+      metrics.gauge("validator_loaded_igs", "IGs loaded into the validator",
+          () -> validator.getProfilesByIg().size());
+      metrics.gauge("validator_loaded_structures", "StructureDefinitions known to the validator",
+          () -> validator.getStructures().size());
+      metrics.cacheGauges("validation_cache", "Validation result cache",
+          validator::getValidationCacheStats);
+      metrics.cacheGauges("validator_ig_budget", "IGs loaded at runtime that may be evicted",
+          validator::getIgBudgetStats);
+    }
+    if (evaluator != null) {
+      metrics.cacheGauges("fhirpath_cache", "Parsed FHIRPath expression cache",
+          evaluator::getExpressionCacheStats);
+    }
+  }
+
+  private static String normalizeRoute(String path) {
+    if (path == null) {
+      return "other";
+    }
+    if (path.length() > 1 && path.endsWith("/")) {
+      path = path.substring(0, path.length() - 1);
+    }
+    if (ROUTES.contains(path)) {
+      return path;
+    }
+    if (path.startsWith("/igs/") && path.indexOf('/', "/igs/".length()) < 0) {
+      return IG_ROUTE;
+    }
+    return "other";
+  }
+}
@@ -0,0 +1,96 @@
+package org.mitre.inferno.rest;
+
+import static spark.Spark.afterAfter;
+import static spark.Spark.before;
+import static spark.Spark.halt;
+
+import java.util.concurrent.Semaphore;
+import org.hl7.fhir.r5.model.OperationOutcome.IssueType;
+import org.mitre.inferno.utils.EnvUtils;
+import org.mitre.inferno.utils.Metrics;
+import spark.Request;
+
+/**
+ * Limits how many requests of each kind are handled at once, so that a burst of slow validation
+ * requests can't take every server thread away from cheap metadata requests.
+ * <p>
+ * Heavy requests (validation, FHIRPath evaluation and loading profiles or IGs) and light requests
+ * (everything else) each get their own number of slots, set by HEAVY_REQUEST_LIMIT and
+ * LIGHT_REQUEST_LIMIT. A request that finds no free slot is rejected with a 503 straight away
+ * rather than queued. A limit of 0, the default, means unlimited.
+ * </p>
+ */
+public class RequestLimits {
+  private static final String PERMIT_ATTRIBUTE = "org.mitre.inferno.requestPermit";
+  private static RequestLimits requestLimits = null;
+  private final Semaphore heavy;
+  private final Semaphore light;
+
+  private RequestLimits() {
+    heavy = createLimit("heavy", EnvUtils.getInt("HEAVY_REQUEST_LIMIT", 0));
+    light = createLimit("light", EnvUtils.getInt("LIGHT_REQUEST_LIMIT", 0));
+    createFilters();
+  }
+
+  /**
+   * Get the existing RequestLimits or create them if they do not already exist.
+   *
+   * @return the singleton RequestLimits
+   */
+  public static RequestLimits getInstance() {
+    if (requestLimits == null) {
+      requestLimits = new RequestLimits();
+    }
+    return requestLimits;
+  }
+
+  private void createFilters() {
+    if (heavy == null && light == null) {
+      return;
+    }
+
+    before((req, res) -> {
+      Semaphore limit = isHeavy(req) ? heavy : light;
+      if (limit == null) {
+        return;
+      }
+      if (!limit.tryAcquire()) {
+        res.type("application/fhir+json");
+        res.header("Retry-After", "1");
+        halt(503, Endpoints.generateOperationOutcome(IssueType.TRANSIENT,
+            "Too many requests are being handled, please retry later."));
+      }
+      req.attribute(PERMIT_ATTRIBUTE, limit);
+    });
+
+    afterAfter((req, res) -> {
+      Semaphore limit = req.attribute(PERMIT_ATTRIBUTE);
+      if (limit != null) {
+        req.raw().removeAttribute(PERMIT_ATTRIBUTE);
+        limit.release();
+      }
+    });
+  }
+
+  private static Semaphore createLimit(String kind, int permits) {
+    if (permits <= 0) {
+      return null;
+    }
+    Semaphore limit = new Semaphore(permits);
+    Metrics.getInstance().gauge("request_slots_available", "Free request slots, by request kind",
+        limit::availablePermits, "kind", kind);
+    return limit;
+  }
+
+  private static boolean isHeavy(Request req) {
+    String method = req.requestMethod();
+    String path = req.pathInfo();
+    if (path == null || "GET".equals(method) || "OPTIONS".equals(method)) {
+      return false;
+    }
+    return path.startsWith("/validate")
+        || path.startsWith("/evaluate")
+        || path.startsWith("/igs")
+        || path.startsWith("/profiles");
+  }
+}
@@ -1,20 +1,43 @@
 package org.mitre.inferno.rest;
 
 import static org.mitre.inferno.rest.Endpoints.TO_JSON;
+import static spark.Spark.exception;
 import static spark.Spark.get;
+import static spark.Spark.halt;
 import static spark.Spark.post;
 import static spark.Spark.put;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import org.hl7.fhir.r5.formats.JsonParser;
 import org.hl7.fhir.r5.model.OperationOutcome;
+import org.hl7.fhir.r5.model.OperationOutcome.IssueType;
+import org.mitre.inferno.IgNotFoundException;
 import org.mitre.inferno.Validator;
+import org.mitre.inferno.ValidatorBusyException;
+import org.mitre.inferno.utils.SparkUtils;
+import spark.Request;
 
 public class ValidatorEndpoint {
   private static ValidatorEndpoint validatorEndpoint = null;
+  private static final String TIMEOUT_HEADER = "X-Validation-Timeout";
+  // composers keep per-call state, so each thread reuses its own
+  private static final ThreadLocal<JsonParser> COMPOSER = ThreadLocal.withInitial(JsonParser::new);
   private final Validator validator;
 
   private ValidatorEndpoint(Validator validator) {
@@ -42,9 +65,41 @@ public class ValidatorEndpoint {
     post("/validate",
         (req, res) -> {
           res.type("application/fhir+json");
-          return validateResource(req.bodyAsBytes(), req.queryParams("profile"));
+          long timeout = parseTimeout(req);
+          validateResource(req.bodyAsBytes(), req.queryParams("profile"), timeout,
+              res.raw().getOutputStream());
+          return "";
+        });
+
+    post("/validate/batch",
+        (req, res) -> {
+          // the type of any error response; outcomes are sent as NDJSON
+          res.type("application/fhir+json");
+          List<String> profiles = parseProfiles(req.queryParams("profile"));
+          long timeout = parseTimeout(req);
+          if (isNdjson(req.contentType())) {
+            res.type("application/fhir+ndjson");
+            validateNdjson(SparkUtils.getUnbufferedInputStream(req), profiles, timeout,
+                res.raw().getOutputStream());
+          } else {
+            List<byte[]> entries = readBundleEntries(req.body());
+            if (entries == null) {
+              halt(400, Endpoints.generateOperationOutcome(IssueType.INVALID,
+                  "Expected a JSON Bundle or an NDJSON request body."));
+            }
+            res.type("application/fhir+ndjson");
+            OutputStream out = res.raw().getOutputStream();
+            Deque<CompletableFuture<OperationOutcome>> pending = new ArrayDeque<>();
+            for (byte[] entry : entries) {
+              submit(entry, profiles, timeout, pending, out);
+            }
+            writeOutcomes(pending, 0, out);
+          }
+          return "";
         });
 
+    get("/validation-cache", (req, res) -> validator.getValidationCacheStats(), TO_JSON);
+
     get("/resources", (req, res) -> validator.getResources(), TO_JSON);
 
     get("/profiles", (req, res) -> validator.getStructures(), TO_JSON);
@@ -59,11 +114,36 @@ public class ValidatorEndpoint {
 
     get("/igs", (req, res) -> validator.getKnownIGs(), TO_JSON);
 
-    post("/igs", (req, res) -> validator.loadPackage(req.bodyAsBytes()), TO_JSON);
+    get("/igs/loaded", (req, res) -> validator.getLoadedIgs(), TO_JSON);
+
+    post("/igs",
+        (req, res) -> validator.loadPackage(SparkUtils.getUnbufferedInputStream(req)),
+        TO_JSON);
 
     put("/igs/:id",
         (req, res) -> validator.loadIg(req.params("id"), req.queryParams("version")),
         TO_JSON);
+
+    exception(IgNotFoundException.class, (e, req, res) -> {
+      res.type("application/fhir+json");
+      res.status(404);
+      try {
+        res.body(Endpoints.generateOperationOutcome(IssueType.NOTFOUND, e.getMessage()));
+      } catch (IOException ioe) {
+        res.body(e.getMessage());
+      }
+    });
+
+    exception(ValidatorBusyException.class, (e, req, res) -> {
+      res.type("application/fhir+json");
+      res.status(503);
+      res.header("Retry-After", "1");
+      try {
+        res.body(Endpoints.generateOperationOutcome(IssueType.TRANSIENT, e.getMessage()));
+      } catch (IOException ioe) {
+        res.body(e.getMessage());
+      }
+    });
   }
 
   /**
@@ -71,18 +151,189 @@ public class ValidatorEndpoint {
    *
    * @param resource the resource to be validated
    * @param profile the profile to validate the resource against
-   * @return the validation res
+   * @param timeout how long the client allows for validation, or 0 for the server default
+   * @param out the stream to write the resulting OperationOutcome to
    * @throws Exception if the resource cannot be loaded or validated
    */
-  private String validateResource(byte[] resource, String profile) throws Exception {
-    List<String> patientProfiles;
+  private void validateResource(byte[] resource, String profile, long timeout, OutputStream out)
+      throws Exception {
+    OperationOutcome oo = validator.validate(resource, parseProfiles(profile), timeout);
+    writeOperationOutcome(oo, out);
+  }
+
+  /**
+   * Reads the validation timeout a client asked for, in milliseconds, from the
+   * X-Validation-Timeout header or else the timeout query parameter.
+   *
+   * @param req the request
+   * @return the requested timeout, or 0 if there is none
+   * @throws IOException if the error response cannot be generated
+   */
+  private long parseTimeout(Request req) throws IOException {
+    String timeout = req.headers(TIMEOUT_HEADER);
+    if (timeout == null) {
+      timeout = req.queryParams("timeout");
+    }
+    if (timeout == null) {
+      return 0;
+    }
+    try {
+      long millis = Long.parseLong(timeout.trim());
+      if (millis > 0) {
+        return millis;
+      }
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    halt(400, Endpoints.generateOperationOutcome(IssueType.INVALID,
+        "The validation timeout must be a positive number of milliseconds."));
+    return 0;
+  }
+
+  /**
+   * Serializes an OperationOutcome as UTF-8 JSON directly to the given stream, without building
+   * an intermediate String.
+   *
+   * @param oo the OperationOutcome to write
+   * @param out the stream to write to
+   * @throws IOException if the OperationOutcome cannot be written
+   */
+  static void writeOperationOutcome(OperationOutcome oo, OutputStream out) throws IOException {
+    COMPOSER.get().compose(out, oo);
+  }
+
+  private List<String> parseProfiles(String profile) {
     if (profile != null) {
-      patientProfiles = Arrays.asList(profile.split(","));
+      return Arrays.asList(profile.split(","));
     } else {
-      patientProfiles = new ArrayList<String>();
+      return new ArrayList<String>();
+    }
+  }
+
+  private boolean isNdjson(String contentType) {
+    return contentType != null && contentType.toLowerCase().contains("ndjson");
+  }
+
+  /**
+   * Validates each non-blank line of an NDJSON body, writing each OperationOutcome while the
+   * rest of the body is still being read.
+   *
+   * @param body the NDJSON request body
+   * @param profiles the profiles to validate every line against
+   * @param timeout how long the client allows for each line, or 0 for the server default
+   * @param out the response stream
+   * @throws IOException if the body cannot be read or the response cannot be written
+   */
+  private void validateNdjson(
+      InputStream body,
+      List<String> profiles,
+      long timeout,
+      OutputStream out
+  ) throws IOException {
+    Deque<CompletableFuture<OperationOutcome>> pending = new ArrayDeque<>();
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (!line.isBlank()) {
+        submit(line.getBytes(StandardCharsets.UTF_8), profiles, timeout, pending, out);
+      }
+    }
+    writeOutcomes(pending, 0, out);
+  }
+
+  /**
+   * Starts validating a resource from a batch. Only a few resources per batch are pending at a
+   * time, so the earliest outcomes are written first whenever too many are.
+   *
+   * @param resource the resource to validate
+   * @param profiles the profiles to validate the resource against
+   * @param timeout how long the client allows for the resource, or 0 for the server default
+   * @param pending the outcomes not written yet, in input order
+   * @param out the response stream
+   * @throws IOException if the response cannot be written
+   */
+  private void submit(
+      byte[] resource,
+      List<String> profiles,
+      long timeout,
+      Deque<CompletableFuture<OperationOutcome>> pending,
+      OutputStream out
+  ) throws IOException {
+    // enough to keep every batch thread busy while the earliest outcome is written
+    writeOutcomes(pending, 2 * validator.getBatchParallelism() - 1, out);
+    pending.addLast(validator.validateAsync(resource, profiles, timeout));
+  }
+
+  /**
+   * Splits a JSON Bundle into the resources of its entries.
+   *
+   * @param body the JSON request body
+   * @return the JSON of each entry's resource, or null if the body is not a JSON Bundle
+   */
+  private List<byte[]> readBundleEntries(String body) {
+    JsonElement parsed;
+    try {
+      parsed = com.google.gson.JsonParser.parseString(body);
+    } catch (RuntimeException e) {
+      return null;
+    }
+    if (!parsed.isJsonObject()) {
+      return null;
+    }
+    JsonObject bundle = parsed.getAsJsonObject();
+    JsonElement resourceType = bundle.get("resourceType");
+    if (resourceType == null || !resourceType.isJsonPrimitive()
+        || !"Bundle".equals(resourceType.getAsString())) {
+      return null;
+    }
+    List<byte[]> resources = new ArrayList<>();
+    JsonElement entries = bundle.get("entry");
+    if (entries == null) {
+      return resources;
     }
+    if (!entries.isJsonArray()) {
+      return null;
+    }
+    for (JsonElement entry : entries.getAsJsonArray()) {
+      if (!entry.isJsonObject()) {
+        return null;
+      }
+      JsonElement resource = entry.getAsJsonObject().get("resource");
+      if (resource != null) {
+        resources.add(resource.toString().getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    return resources;
+  }
 
-    OperationOutcome oo = validator.validate(resource, patientProfiles);
-    return new JsonParser().composeString(oo);
+  /**
+   * Writes the earliest pending OperationOutcomes as lines of NDJSON, waiting for each in turn,
+   * until no more than the given number are left.
+   *
+   * @param pending the outcomes not written yet, in input order
+   * @param keep how many outcomes may be left pending
+   * @param out the response stream
+   * @throws IOException if the response cannot be written
+   */
+  private void writeOutcomes(
+      Deque<CompletableFuture<OperationOutcome>> pending,
+      int keep,
+      OutputStream out
+  ) throws IOException {
+    while (pending.size() > keep) {
+      try {
+        writeOperationOutcome(pending.removeFirst().join(), out);
+      } catch (CompletionException e) {
+        Throwable cause = e.getCause() != null ? e.getCause() : e;
+        IssueType type = cause instanceof ValidatorBusyException
+            ? IssueType.TRANSIENT
+            : IssueType.EXCEPTION;
+        String line = Endpoints.generateOperationOutcome(type, cause.getMessage());
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+      }
+      out.write('\n');
+      out.flush();
+    }
   }
 }
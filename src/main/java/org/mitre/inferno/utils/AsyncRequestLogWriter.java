@@ -0,0 +1,93 @@
+package org.mitre.inferno.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.eclipse.jetty.server.RequestLog;
+
+/**
+ * A request log writer that hands lines to a single background thread, so that slow log output
+ * never adds to a request's latency.
+ * <p>
+ * Lines wait in a bounded queue. When the queue is full, a line is either dropped and counted,
+ * or the request thread waits for room, depending on the configured policy.
+ * </p>
+ */
+public class AsyncRequestLogWriter implements RequestLog.Writer {
+  private static final int MAX_BATCH = 256;
+
+  private final BlockingQueue<String> queue;
+  private final Consumer<String> sink;
+  private final boolean blockWhenFull;
+  private final LongAdder dropped = new LongAdder();
+
+  /**
+   * Creates a writer and starts its background thread.
+   *
+   * @param sink receives each line, on the background thread
+   * @param capacity the most lines that can wait to be written
+   * @param blockWhenFull whether to wait for room rather than drop lines when the queue is full
+   */
+  public AsyncRequestLogWriter(Consumer<String> sink, int capacity, boolean blockWhenFull) {
+    this.sink = sink;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.blockWhenFull = blockWhenFull;
+    new NamedThreadFactory("request-log").newThread(this::drain).start();
+  }
+
+  @Override
+  public void write(String requestEntry) {
+    if (blockWhenFull) {
+      try {
+        queue.put(requestEntry);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        dropped.increment();
+      }
+    } else if (!queue.offer(requestEntry)) {
+      dropped.increment();
+    }
+  }
+
+  /**
+   * Counts the lines that were not written because the queue was full.
+   *
+   * @return the number of dropped lines
+   */
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * Counts the lines waiting to be written.
+   *
+   * @return the number of queued lines
+   */
+  public int getQueued() {
+    return queue.size();
+  }
+
+  private void drain() {
+    List<String> batch = new ArrayList<>(MAX_BATCH);
+    while (true) {
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      queue.drainTo(batch, MAX_BATCH - 1);
+      for (String line : batch) {
+        try {
+          sink.accept(line);
+        } catch (RuntimeException e) {
+          // a failing log backend must not stop the writer
+          dropped.increment();
+        }
+      }
+      batch.clear();
+    }
+  }
+}
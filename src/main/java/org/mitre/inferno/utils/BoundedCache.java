@@ -0,0 +1,113 @@
+package org.mitre.inferno.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe least-recently-used cache with an optional time-to-live for each entry.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class BoundedCache<K, V> {
+  private final int maxEntries;
+  private final long ttlMillis;
+  private final LinkedHashMap<K, CachedValue<V>> entries;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param maxEntries the most entries to keep before evicting the least recently used one
+   * @param ttlMillis how long an entry stays valid after being added, or 0 to never expire
+   */
+  public BoundedCache(int maxEntries, long ttlMillis) {
+    this.maxEntries = maxEntries;
+    this.ttlMillis = ttlMillis;
+    this.entries = new LinkedHashMap<K, CachedValue<V>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, CachedValue<V>> eldest) {
+        if (size() > BoundedCache.this.maxEntries) {
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Looks up a value, counting the lookup as a hit or a miss.
+   *
+   * @param key the key to look up
+   * @return the cached value, or null if there is none or it has expired
+   */
+  public synchronized V get(K key) {
+    CachedValue<V> entry = entries.get(key);
+    if (entry != null && ttlMillis > 0 && System.currentTimeMillis() - entry.created > ttlMillis) {
+      entries.remove(key);
+      evictions.incrementAndGet();
+      entry = null;
+    }
+    if (entry == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return entry.value;
+  }
+
+  /**
+   * Adds or replaces a value.
+   *
+   * @param key the key to store the value under
+   * @param value the value to store
+   */
+  public synchronized void put(K key, V value) {
+    entries.put(key, new CachedValue<>(value, System.currentTimeMillis()));
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * Summarizes the cache's size and counters.
+   *
+   * @return a Map of statistic name to value
+   */
+  public Map<String, Long> getStats() {
+    Map<String, Long> stats = new LinkedHashMap<>();
+    stats.put("size", (long) size());
+    stats.put("maxSize", (long) maxEntries);
+    stats.put("hits", getHits());
+    stats.put("misses", getMisses());
+    stats.put("evictions", getEvictions());
+    return stats;
+  }
+
+  private static class CachedValue<V> {
+    final V value;
+    final long created;
+
+    CachedValue(V value, long created) {
+      this.value = value;
+      this.created = created;
+    }
+  }
+}
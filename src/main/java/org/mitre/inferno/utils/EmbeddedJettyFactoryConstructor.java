@@ -1,12 +1,12 @@
 package org.mitre.inferno.utils;
 
-import org.eclipse.jetty.server.CustomRequestLog;
+import org.eclipse.jetty.server.RequestLog;
 import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
 public class EmbeddedJettyFactoryConstructor {
-  CustomRequestLog requestLog;
+  RequestLog requestLog;
 
-  public EmbeddedJettyFactoryConstructor(CustomRequestLog requestLog) {
+  public EmbeddedJettyFactoryConstructor(RequestLog requestLog) {
     this.requestLog = requestLog;
   }
 
@@ -1,35 +1,74 @@
 package org.mitre.inferno.utils;
 
+import java.util.concurrent.BlockingQueue;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.BlockingArrayQueue;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.eclipse.jetty.util.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import spark.embeddedserver.jetty.JettyServerFactory;
 
 class EmbeddedJettyServerFactory implements JettyServerFactory {
+  private static final Logger LOGGER = LoggerFactory.getLogger(EmbeddedJettyServerFactory.class);
   private EmbeddedJettyFactoryConstructor embeddedJettyFactoryConstructor;
   
   EmbeddedJettyServerFactory(EmbeddedJettyFactoryConstructor embeddedJettyFactoryConstructor) {
     this.embeddedJettyFactoryConstructor = embeddedJettyFactoryConstructor;
   }
   
+  /**
+   * Creates the server with a thread pool configured from the environment. JETTY_VIRTUAL_THREADS
+   * runs each request on a virtual thread when the JDK supports it. Otherwise a QueuedThreadPool
+   * is sized by JETTY_MAX_THREADS, JETTY_MIN_THREADS and JETTY_IDLE_TIMEOUT_MS, falling back to
+   * Spark's settings and then to Jetty's defaults, and JETTY_QUEUE_LIMIT bounds the number of
+   * jobs that may wait for a thread.
+   */
   @Override
   public Server create(int maxThreads, int minThreads, int threadTimeoutMillis) {
-    Server server;
-    if (maxThreads > 0) {
-      int max = maxThreads > 0 ? maxThreads : 200;
-      int min = minThreads > 0 ? minThreads : 8;
-      int idleTimeout = threadTimeoutMillis > 0 ? threadTimeoutMillis : 60;
-      server = new Server(new QueuedThreadPool(max, min, idleTimeout));
+    ThreadPool threadPool;
+    if (EnvUtils.getBoolean("JETTY_VIRTUAL_THREADS", false) && VirtualThreadPool.isSupported()) {
+      LOGGER.info("Serving requests on virtual threads");
+      threadPool = new VirtualThreadPool();
     } else {
-      server = new Server();
+      if (EnvUtils.getBoolean("JETTY_VIRTUAL_THREADS", false)) {
+        LOGGER.warn("JETTY_VIRTUAL_THREADS is set, but this JDK does not support virtual threads");
+      }
+      int max = EnvUtils.getInt("JETTY_MAX_THREADS", maxThreads > 0 ? maxThreads : 200);
+      int min = EnvUtils.getInt("JETTY_MIN_THREADS", minThreads > 0 ? minThreads : 8);
+      int idleTimeout = EnvUtils.getInt("JETTY_IDLE_TIMEOUT_MS",
+          threadTimeoutMillis > 0 ? threadTimeoutMillis : 60000);
+      int queueLimit = EnvUtils.getInt("JETTY_QUEUE_LIMIT", 0);
+      // when the queue is full, Jetty rejects new connections right away instead of queueing them
+      BlockingQueue<Runnable> queue = queueLimit > 0
+          ? new BlockingArrayQueue<>(Math.min(queueLimit, 1024), 1024, queueLimit)
+          : null;
+      threadPool = new QueuedThreadPool(max, min, idleTimeout, queue);
     }
-    
+    Server server = new Server(threadPool);
     server.setRequestLog(embeddedJettyFactoryConstructor.requestLog);
+    registerThreadPoolMetrics(threadPool);
     return server;
   }
   
   @Override
   public Server create(ThreadPool threadPool) {
+    registerThreadPoolMetrics(threadPool);
     return new Server(threadPool);
   }
+
+  private static void registerThreadPoolMetrics(ThreadPool threadPool) {
+    Metrics metrics = Metrics.getInstance();
+    metrics.gauge("jetty_threads", "Threads in the Jetty thread pool", threadPool::getThreads);
+    metrics.gauge("jetty_threads_idle", "Idle threads in the Jetty thread pool",
+        threadPool::getIdleThreads);
+    if (threadPool instanceof QueuedThreadPool) {
+      QueuedThreadPool pool = (QueuedThreadPool) threadPool;
+      metrics.gauge("jetty_threads_busy", "Busy threads in the Jetty thread pool",
+          pool::getBusyThreads);
+      metrics.gauge("jetty_threads_max", "Maximum threads in the Jetty thread pool",
+          pool::getMaxThreads);
+      metrics.gauge("jetty_queue_size", "Jobs waiting for a Jetty thread", pool::getQueueSize);
+    }
+  }
 }
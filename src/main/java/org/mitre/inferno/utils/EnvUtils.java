@@ -0,0 +1,77 @@
+package org.mitre.inferno.utils;
+
+/**
+ * Reads settings from the environment. A Java system property with the same name as a setting,
+ * such as -DIG_MAX_LOADED=10, takes precedence over the environment variable.
+ */
+public class EnvUtils {
+
+  /**
+   * Reads a string setting from the environment.
+   *
+   * @param name the setting's name
+   * @param defaultValue the value to use when the variable is unset
+   * @return the configured value, or the default
+   */
+  public static String getString(String name, String defaultValue) {
+    String value = lookup(name);
+    if (value != null) {
+      return value.trim();
+    } else {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Reads an integer setting from the environment.
+   *
+   * @param name the setting's name
+   * @param defaultValue the value to use when the variable is unset
+   * @return the configured value, or the default
+   */
+  public static int getInt(String name, int defaultValue) {
+    String value = lookup(name);
+    if (value != null) {
+      return Integer.parseInt(value.trim());
+    } else {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Reads a long setting from the environment.
+   *
+   * @param name the setting's name
+   * @param defaultValue the value to use when the variable is unset
+   * @return the configured value, or the default
+   */
+  public static long getLong(String name, long defaultValue) {
+    String value = lookup(name);
+    if (value != null) {
+      return Long.parseLong(value.trim());
+    } else {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Reads a boolean setting from the environment.
+   *
+   * @param name the setting's name
+   * @param defaultValue the value to use when the variable is unset
+   * @return the configured value, or the default
+   */
+  public static boolean getBoolean(String name, boolean defaultValue) {
+    String value = lookup(name);
+    if (value != null) {
+      return Boolean.parseBoolean(value.trim());
+    } else {
+      return defaultValue;
+    }
+  }
+
+  private static String lookup(String name) {
+    String value = System.getProperty(name);
+    return value != null ? value : System.getenv(name);
+  }
+}
@@ -0,0 +1,45 @@
+package org.mitre.inferno.utils;
+
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.time.Instant;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.RequestLog;
+import org.eclipse.jetty.server.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A request log that writes one JSON object per request, for log pipelines that parse
+ * structured records more easily than NCSA lines.
+ */
+public class JsonRequestLog implements RequestLog {
+  private static final Logger LOGGER = LoggerFactory.getLogger(JsonRequestLog.class);
+
+  private final RequestLog.Writer writer;
+
+  public JsonRequestLog(RequestLog.Writer writer) {
+    this.writer = writer;
+  }
+
+  @Override
+  public void log(Request request, Response response) {
+    long now = System.currentTimeMillis();
+    JsonObject entry = new JsonObject();
+    entry.addProperty("time", Instant.ofEpochMilli(request.getTimeStamp()).toString());
+    entry.addProperty("remote", request.getRemoteAddr());
+    entry.addProperty("method", request.getMethod());
+    entry.addProperty("uri", request.getOriginalURI());
+    entry.addProperty("protocol", request.getProtocol());
+    entry.addProperty("status", response.getCommittedMetaData().getStatus());
+    entry.addProperty("bytes", response.getHttpChannel().getBytesWritten());
+    entry.addProperty("durationMs", now - request.getTimeStamp());
+    entry.addProperty("referer", request.getHeader("Referer"));
+    entry.addProperty("userAgent", request.getHeader("User-Agent"));
+    try {
+      writer.write(entry.toString());
+    } catch (IOException e) {
+      LOGGER.warn("Could not write the request log", e);
+    }
+  }
+}
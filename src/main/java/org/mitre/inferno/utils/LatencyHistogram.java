@@ -0,0 +1,88 @@
+package org.mitre.inferno.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe histogram of durations with fixed, roughly logarithmic buckets from 1ms to 1min.
+ * <p>
+ * Recording a duration only increments two counters, so it is cheap enough to call on every
+ * request from any number of threads.
+ * </p>
+ */
+public class LatencyHistogram {
+  // upper bounds of the buckets, in seconds
+  private static final double[] BOUNDS = {
+      0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+  };
+  private static final long[] BOUND_NANOS = new long[BOUNDS.length];
+
+  static {
+    for (int i = 0; i < BOUNDS.length; i++) {
+      BOUND_NANOS[i] = (long) (BOUNDS[i] * TimeUnit.SECONDS.toNanos(1));
+    }
+  }
+
+  // one more bucket than bounds, for durations above the last bound
+  private final LongAdder[] counts = new LongAdder[BOUNDS.length + 1];
+  private final LongAdder sumNanos = new LongAdder();
+
+  /**
+   * Creates an empty histogram.
+   */
+  public LatencyHistogram() {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Records one duration.
+   *
+   * @param nanos the duration in nanoseconds
+   */
+  public void record(long nanos) {
+    int bucket = 0;
+    while (bucket < BOUND_NANOS.length && nanos > BOUND_NANOS[bucket]) {
+      bucket++;
+    }
+    counts[bucket].increment();
+    sumNanos.add(nanos);
+  }
+
+  /**
+   * Counts the recorded durations.
+   *
+   * @return the number of durations recorded so far
+   */
+  public long getCount() {
+    long count = 0;
+    for (LongAdder bucket : counts) {
+      count += bucket.sum();
+    }
+    return count;
+  }
+
+  /**
+   * Appends the histogram in the Prometheus text exposition format.
+   *
+   * @param out where to append the samples
+   * @param name the metric name
+   * @param labels the rendered labels of this series, or an empty string
+   */
+  void writeTo(StringBuilder out, String name, String labels) {
+    String prefix = labels.isEmpty() ? "" : labels + ",";
+    long cumulative = 0;
+    for (int i = 0; i < counts.length; i++) {
+      cumulative += counts[i].sum();
+      String le = i < BOUNDS.length ? Double.toString(BOUNDS[i]) : "+Inf";
+      out.append(name).append("_bucket{").append(prefix).append("le=\"").append(le)
+          .append("\"} ").append(cumulative).append('\n');
+    }
+    String series = labels.isEmpty() ? "" : "{" + labels + "}";
+    out.append(name).append("_sum").append(series).append(' ')
+        .append(sumNanos.sum() / 1e9).append('\n');
+    out.append(name).append("_count").append(series).append(' ')
+        .append(cumulative).append('\n');
+  }
+}
@@ -0,0 +1,182 @@
+package org.mitre.inferno.utils;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+ * The registry of metrics exposed by the service in the Prometheus text exposition format.
+ * <p>
+ * A metric family is registered by name the first time it is used, and has one series per
+ * distinct set of labels. Gauges are read only when the metrics are scraped.
+ * </p>
+ */
+public class Metrics {
+  // a family stops growing new series past this, so that unbounded label values (e.g. profile
+  // URLs supplied by clients) can't exhaust memory
+  private static final int MAX_SERIES = 1000;
+  private static final String OVERFLOW_LABELS = "overflow=\"true\"";
+  private static final Metrics INSTANCE = new Metrics();
+
+  private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+  private Metrics() {
+  }
+
+  public static Metrics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Gets or creates the histogram for the given labels.
+   *
+   * @param name the metric name
+   * @param help a description of the metric
+   * @param labels alternating label names and values
+   * @return the histogram to record durations in
+   */
+  public LatencyHistogram histogram(String name, String help, String... labels) {
+    Family family = family(name, help, "histogram");
+    String rendered = renderLabels(labels);
+    Object series = family.series.get(rendered);
+    if (series == null) {
+      if (family.series.size() >= MAX_SERIES) {
+        rendered = OVERFLOW_LABELS;
+      }
+      series = family.series.computeIfAbsent(rendered, k -> new LatencyHistogram());
+    }
+    return (LatencyHistogram) series;
+  }
+
+  /**
+   * Registers a gauge, replacing any gauge already registered with the same name and labels.
+   *
+   * @param name the metric name
+   * @param help a description of the metric
+   * @param value supplies the current value when the metrics are scraped
+   * @param labels alternating label names and values
+   */
+  public void gauge(String name, String help, Supplier<? extends Number> value, String... labels) {
+    family(name, help, "gauge").series.put(renderLabels(labels), value);
+  }
+
+  /**
+   * Registers a counter that is maintained elsewhere, replacing any counter already registered
+   * with the same name and labels.
+   *
+   * @param name the metric name, which should end in _total
+   * @param help a description of the metric
+   * @param value supplies the current value when the metrics are scraped
+   * @param labels alternating label names and values
+   */
+  public void counter(String name, String help, Supplier<? extends Number> value,
+      String... labels) {
+    family(name, help, "counter").series.put(renderLabels(labels), value);
+  }
+
+  /**
+   * Registers gauges for each statistic of a cache, e.g. validation_cache_hits.
+   *
+   * @param prefix the metric name prefix
+   * @param description what is being cached
+   * @param stats supplies the cache's statistics
+   */
+  public void cacheGauges(String prefix, String description, Supplier<Map<String, Long>> stats) {
+    for (String stat : stats.get().keySet()) {
+      String name = prefix + "_" + stat.replaceAll("([A-Z])", "_$1").toLowerCase();
+      gauge(name, description + ": " + stat, () -> stats.get().getOrDefault(stat, 0L));
+    }
+  }
+
+  /**
+   * Registers gauges for the JVM's heap and garbage collectors.
+   */
+  public void registerJvmMetrics() {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    gauge("jvm_heap_used_bytes", "Heap memory in use",
+        () -> memory.getHeapMemoryUsage().getUsed());
+    gauge("jvm_heap_committed_bytes", "Heap memory committed by the JVM",
+        () -> memory.getHeapMemoryUsage().getCommitted());
+    gauge("jvm_heap_max_bytes", "Maximum heap memory",
+        () -> memory.getHeapMemoryUsage().getMax());
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      counter("jvm_gc_collections_total", "Garbage collections run",
+          gc::getCollectionCount, "gc", gc.getName());
+      counter("jvm_gc_collection_seconds_total", "Time spent in garbage collection",
+          () -> gc.getCollectionTime() / 1000.0, "gc", gc.getName());
+    }
+  }
+
+  /**
+   * Renders every metric in the Prometheus text exposition format.
+   *
+   * @return the current value of every metric
+   */
+  @SuppressWarnings("unchecked")
+  public String scrape() {
+    StringBuilder out = new StringBuilder();
+    for (Map.Entry<String, Family> entry : families.entrySet()) {
+      String name = entry.getKey();
+      Family family = entry.getValue();
+      out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+      out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+      for (Map.Entry<String, Object> series : family.series.entrySet()) {
+        String labels = series.getKey();
+        if (series.getValue() instanceof LatencyHistogram) {
+          ((LatencyHistogram) series.getValue()).writeTo(out, name, labels);
+          continue;
+        }
+        Number value;
+        try {
+          value = ((Supplier<? extends Number>) series.getValue()).get();
+        } catch (RuntimeException e) {
+          // a gauge that can't be read right now is left out of this scrape
+          continue;
+        }
+        out.append(name);
+        if (!labels.isEmpty()) {
+          out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+      }
+    }
+    return out.toString();
+  }
+
+  private Family family(String name, String help, String type) {
+    Family family = families.computeIfAbsent(name, k -> new Family(help, type));
+    if (!family.type.equals(type)) {
+      throw new IllegalArgumentException("Metric " + name + " is a " + family.type);
+    }
+    return family;
+  }
+
+  private static String renderLabels(String... labels) {
+    StringBuilder rendered = new StringBuilder();
+    for (int i = 0; i + 1 < labels.length; i += 2) {
+      if (rendered.length() > 0) {
+        rendered.append(',');
+      }
+      String value = labels[i + 1] == null ? "" : labels[i + 1];
+      rendered.append(labels[i]).append("=\"")
+          .append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+          .append('"');
+    }
+    return rendered.toString();
+  }
+
+  private static class Family {
+    final String help;
+    final String type;
+    final ConcurrentMap<String, Object> series = new ConcurrentSkipListMap<>();
+
+    Family(String help, String type) {
+      this.help = help;
+      this.type = type;
+    }
+  }
+}
@@ -1,36 +1,53 @@
 package org.mitre.inferno.utils;
 
-import java.io.IOException;
-
 import org.eclipse.jetty.server.CustomRequestLog;
-import org.eclipse.jetty.server.Slf4jRequestLogWriter;
+import org.eclipse.jetty.server.RequestLog;
 import org.slf4j.Logger;
 
 public class RequestLogFactory {
   
   private Logger logger;
-  private CustomRequestLog crl;
+  private RequestLog log;
   
+  /**
+   * Creates the request log configured by REQUEST_LOG_FORMAT ("ncsa", the default, or "json"),
+   * whose lines are written to the given logger in the background.
+   *
+   * @param logger the logger to write request log lines to
+   */
   public RequestLogFactory(Logger logger) {
     this.logger = logger;
-    this.crl = new CustomRequestLog(create(), CustomRequestLog.EXTENDED_NCSA_FORMAT);
+    AsyncRequestLogWriter writer = create();
+    Metrics.getInstance().counter("request_log_dropped_total",
+        "Request log lines dropped because the log queue was full", writer::getDropped);
+    Metrics.getInstance().gauge("request_log_queued", "Request log lines waiting to be written",
+        writer::getQueued);
+    if ("json".equalsIgnoreCase(EnvUtils.getString("REQUEST_LOG_FORMAT", "ncsa"))) {
+      this.log = new JsonRequestLog(writer);
+    } else {
+      this.log = new CustomRequestLog(writer, CustomRequestLog.EXTENDED_NCSA_FORMAT);
+    }
   }
   
-  Slf4jRequestLogWriter create() {
-    return new Slf4jRequestLogWriter() {
-      @Override
-      protected boolean isEnabled() {
-        return true;
-      }
-      
-      @Override
-      public void write(String s) throws IOException {
-        logger.info(s);
-      }
-    };
+  /**
+   * Creates a writer that queues up to REQUEST_LOG_QUEUE_SIZE (default 8192) lines, and either
+   * drops lines (REQUEST_LOG_POLICY=drop, the default) or makes requests wait
+   * (REQUEST_LOG_POLICY=block) when the queue is full.
+   *
+   * @return the request log writer
+   */
+  AsyncRequestLogWriter create() {
+    String policy = EnvUtils.getString("REQUEST_LOG_POLICY", "drop");
+    if (!"drop".equalsIgnoreCase(policy) && !"block".equalsIgnoreCase(policy)) {
+      logger.warn("Unknown REQUEST_LOG_POLICY " + policy + ", dropping lines when full");
+    }
+    return new AsyncRequestLogWriter(
+        logger::info,
+        EnvUtils.getInt("REQUEST_LOG_QUEUE_SIZE", 8192),
+        "block".equalsIgnoreCase(policy));
   }
   
-  public CustomRequestLog getLog() {
-    return this.crl;
+  public RequestLog getLog() {
+    return this.log;
   }
 }
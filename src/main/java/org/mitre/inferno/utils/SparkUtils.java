@@ -1,7 +1,12 @@
 package org.mitre.inferno.utils;
 
-import org.eclipse.jetty.server.CustomRequestLog;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+import org.eclipse.jetty.server.RequestLog;
 import org.slf4j.Logger;
+import spark.Request;
 import spark.embeddedserver.EmbeddedServers;
 import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
@@ -11,8 +16,24 @@ public class SparkUtils {
     EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY, factory);
   }
 
+  /**
+   * Gets the request body as the servlet container's stream. Spark's own request stream reads
+   * the whole body into memory first, which this avoids for large uploads.
+   *
+   * @param req the request to read
+   * @return the unbuffered request body
+   * @throws IOException if the body cannot be read
+   */
+  public static InputStream getUnbufferedInputStream(Request req) throws IOException {
+    ServletRequest raw = req.raw();
+    if (raw instanceof ServletRequestWrapper) {
+      raw = ((ServletRequestWrapper) raw).getRequest();
+    }
+    return raw.getInputStream();
+  }
+
   private static EmbeddedJettyFactory createEmbeddedJettyFactoryWithRequestLog(Logger logger) {
-    CustomRequestLog requestLog = new RequestLogFactory(logger).getLog();
+    RequestLog requestLog = new RequestLogFactory(logger).getLog();
     return new EmbeddedJettyFactoryConstructor(requestLog).create();
   }
 }
@@ -0,0 +1,88 @@
+package org.mitre.inferno.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * A Jetty thread pool that runs every task on a new virtual thread, so requests that block on
+ * terminology lookups don't tie up platform threads.
+ * <p>
+ * Virtual threads need JDK 21 or later, while this service is built for Java 11, so the executor
+ * is looked up reflectively. Use {@link #isSupported()} before creating one.
+ * </p>
+ */
+public class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+  private final ExecutorService executor;
+  private final AtomicInteger running = new AtomicInteger();
+
+  /**
+   * Creates a pool backed by a virtual-thread-per-task executor.
+   *
+   * @throws IllegalStateException if the JDK does not support virtual threads
+   */
+  public VirtualThreadPool() {
+    try {
+      executor = (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Virtual threads are not supported by this JDK", e);
+    }
+  }
+
+  /**
+   * Checks whether the running JDK supports virtual threads.
+   *
+   * @return true if a VirtualThreadPool can be created
+   */
+  public static boolean isSupported() {
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    executor.execute(() -> {
+      running.incrementAndGet();
+      try {
+        task.run();
+      } finally {
+        running.decrementAndGet();
+      }
+    });
+  }
+
+  @Override
+  public void join() throws InterruptedException {
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public int getThreads() {
+    return running.get();
+  }
+
+  @Override
+  public int getIdleThreads() {
+    return 0;
+  }
+
+  @Override
+  public boolean isLowOnThreads() {
+    return false;
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    executor.shutdownNow();
+    super.doStop();
+  }
+}
@@ -1,11 +1,18 @@
 package org.mitre.inferno;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import org.apache.commons.io.IOUtils;
 import org.hl7.fhir.r4.formats.JsonParser;
 import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
@@ -63,6 +70,71 @@ class FHIRPathEvaluatorTest {
     );
   }
 
+  @Test
+  void reusesParsedExpressions() throws IOException {
+    Resource patient = loadResource("patient_fixture.json");
+    long hits = pathEvaluator.getExpressionCacheStats().get("hits");
+    long misses = pathEvaluator.getExpressionCacheStats().get("misses");
+
+    String first = pathEvaluator.evaluateToString(patient, "Patient.name.given.count()");
+    String second = pathEvaluator.evaluateToString(patient, "Patient.name.given.count()");
+    assertEquals(first, second);
+    assertEquals(misses + 1, pathEvaluator.getExpressionCacheStats().get("misses"));
+    assertEquals(hits + 1, pathEvaluator.getExpressionCacheStats().get("hits"));
+  }
+
+  @Test
+  void evaluateToStream() throws IOException {
+    Resource patient = loadResource("patient_fixture.json");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    pathEvaluator.evaluateToStream(
+        patient, "Patient.name.given | Patient.communication.preferred", out);
+    assertEquals(
+        "["
+            + "{\"type\":\"string\",\"element\":\"A\"},"
+            + "{\"type\":\"string\",\"element\":\"B\"},"
+            + "{\"type\":\"string\",\"element\":\"C\"},"
+            + "{\"type\":\"boolean\",\"element\":true}"
+            + "]",
+        out.toString(StandardCharsets.UTF_8)
+    );
+  }
+
+  @Test
+  void evaluateAll() throws IOException {
+    Resource patient = loadResource("patient_fixture.json");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FHIRPathEvaluator.writeResults(
+        pathEvaluator.evaluateAll(
+            patient, Arrays.asList("Patient.id.substring(1,3)", "Patient.foo", "Patient.foo")),
+        out
+    );
+    assertEquals(
+        "{"
+            + "\"Patient.id.substring(1,3)\":[{\"type\":\"string\",\"element\":\"234\"}],"
+            + "\"Patient.foo\":[]"
+            + "}",
+        out.toString(StandardCharsets.UTF_8)
+    );
+  }
+
+  @Test
+  void writesNothingForUnwritableResult() {
+    StringType unwritable = new StringType("<div/>") {
+      @Override
+      public String fhirType() {
+        return "xhtml";
+      }
+    };
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertThrows(IllegalArgumentException.class, () -> FHIRPathEvaluator.writeResult(
+        Arrays.asList(new StringType("A"), unwritable), out));
+    assertThrows(IllegalArgumentException.class, () -> FHIRPathEvaluator.writeResults(
+        Map.of("Patient.id", List.of(new StringType("A")), "Patient.text.div", List.of(unwritable)),
+        out));
+    assertEquals(0, out.size());
+  }
+
   private Resource loadResource(String filename) throws IOException {
     return new JsonParser().parse(loadFile(filename));
   }
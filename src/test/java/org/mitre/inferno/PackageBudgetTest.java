@@ -0,0 +1,64 @@
+package org.mitre.inferno;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+
+class PackageBudgetTest {
+
+  private static void add(PackageBudget<String> budget, String key, long bytes) {
+    budget.add(key, key, bytes, Collections.singletonList("http://example.org/" + key));
+  }
+
+  @Test
+  void evictsLeastRecentlyUsedOverCount() {
+    PackageBudget<String> budget = new PackageBudget<>(2, 0);
+    add(budget, "a#1", 10);
+    add(budget, "b#1", 10);
+    add(budget, "c#1", 10);
+    budget.touch(Collections.singletonList("http://example.org/a#1|1.0.0"));
+    assertEquals(Collections.singletonList("b#1"), budget.evict());
+    assertEquals(2, budget.size());
+    assertTrue(budget.evict().isEmpty());
+  }
+
+  @Test
+  void evictsLeastRecentlyUsedOverSize() {
+    PackageBudget<String> budget = new PackageBudget<>(0, 100);
+    add(budget, "a#1", 40);
+    add(budget, "b#1", 40);
+    add(budget, "c#1", 40);
+    assertEquals(Collections.singletonList("a#1"), budget.evict());
+    assertEquals(80, budget.bytes());
+  }
+
+  @Test
+  void keepsMostRecentlyUsed() {
+    PackageBudget<String> budget = new PackageBudget<>(0, 100);
+    add(budget, "a#1", 50);
+    add(budget, "b#1", 500);
+    assertEquals(Arrays.asList("a#1"), budget.evict());
+    assertEquals(1, budget.size());
+    assertTrue(budget.evict().isEmpty());
+  }
+
+  @Test
+  void replacesSameKey() {
+    PackageBudget<String> budget = new PackageBudget<>(1, 0);
+    add(budget, "a#1", 10);
+    add(budget, "a#1", 20);
+    assertTrue(budget.evict().isEmpty());
+    assertEquals(20, budget.bytes());
+  }
+
+  @Test
+  void tracksNothingWithoutBudget() {
+    PackageBudget<String> budget = new PackageBudget<>(0, 0);
+    add(budget, "a#1", 10);
+    assertEquals(0, budget.size());
+    assertTrue(budget.evict().isEmpty());
+  }
+}
@@ -0,0 +1,89 @@
+package org.mitre.inferno;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class PackageIndexTest {
+
+  private PackageIndex<String> index() {
+    PackageIndex<String> index = new PackageIndex<>();
+    for (String version : new String[] {"1.0.0", "1.2.0", "1.10.0", "2.0.0-ballot", "2.0.0",
+        "2.1.0", "0.2.1", "0.2.5", "3.0.0-ballot"}) {
+      index.put("hl7.fhir.us.example", version, version);
+    }
+    index.put("hl7.fhir.us.other", "4.0.1", "4.0.1");
+    return index;
+  }
+
+  @Test
+  void findsExactAndLatestVersions() {
+    PackageIndex<String> index = index();
+    assertEquals("1.2.0", index.find("hl7.fhir.us.example", "1.2.0"));
+    assertEquals("2.0.0-ballot", index.find("hl7.fhir.us.example", "2.0.0-ballot"));
+    assertEquals("3.0.0-ballot", index.find("hl7.fhir.us.example", null));
+    assertNull(index.find("hl7.fhir.us.example", "1.2.1"));
+    assertNull(index.find("hl7.fhir.us.missing", null));
+  }
+
+  @Test
+  void findsRanges() {
+    PackageIndex<String> index = index();
+    assertEquals("1.10.0", index.find("hl7.fhir.us.example", "1.x"));
+    assertEquals("1.2.0", index.find("hl7.fhir.us.example", "1.2.*"));
+    assertEquals("1.10.0", index.find("hl7.fhir.us.example", "^1.1.0"));
+    assertEquals("2.1.0", index.find("hl7.fhir.us.example", "^2.0.0"));
+    assertEquals("0.2.5", index.find("hl7.fhir.us.example", "^0.2.0"));
+    assertEquals("1.2.0", index.find("hl7.fhir.us.example", "~1.2.0"));
+    assertNull(index.find("hl7.fhir.us.example", "~1.3.0"));
+  }
+
+  @Test
+  void findsTwoPartVersionsInRanges() {
+    PackageIndex<String> index = new PackageIndex<>();
+    for (String version : new String[] {"1.0", "2.0-ballot", "2.0"}) {
+      index.put("hl7.fhir.us.short", version, version);
+    }
+    assertEquals("1.0", index.find("hl7.fhir.us.short", "1.x"));
+    assertEquals("1.0", index.find("hl7.fhir.us.short", "^1.0"));
+    assertEquals("1.0", index.find("hl7.fhir.us.short", "^1.0.0"));
+    assertEquals("1.0", index.find("hl7.fhir.us.short", "~1.0.0"));
+    assertEquals("2.0", index.find("hl7.fhir.us.short", "2.x"));
+    assertNull(index.find("hl7.fhir.us.short", "^1.1.0"));
+
+    index.put("hl7.fhir.us.short", "1.0.0", "1.0.0");
+    index.put("hl7.fhir.us.short", "1.0.1", "1.0.1");
+    assertEquals("1.0.1", index.find("hl7.fhir.us.short", "1.x"));
+    assertEquals("1.0", index.find("hl7.fhir.us.short", "1.0"));
+  }
+
+  @Test
+  void treatsIdsLiterally() {
+    PackageIndex<String> index = index();
+    assertNull(index.find("hl7.fhir.us.*", null));
+    assertNull(index.find("hl7xfhir.us.other", null));
+  }
+
+  @Test
+  void ordersVersions() {
+    assertTrue(PackageIndex.VERSION_ORDER.compare("1.9.0", "1.10.0") < 0);
+    assertTrue(PackageIndex.VERSION_ORDER.compare("2.0.0-ballot", "2.0.0") < 0);
+    assertTrue(PackageIndex.VERSION_ORDER.compare("2.0.0-ballot.2", "2.0.0-ballot.10") < 0);
+
+    Map<String, String> latest = index().latest();
+    assertEquals("3.0.0-ballot", latest.get("hl7.fhir.us.example"));
+    assertEquals("4.0.1", latest.get("hl7.fhir.us.other"));
+  }
+
+  @Test
+  void removesExactVersion() {
+    PackageIndex<String> index = index();
+    index.remove("hl7.fhir.us.example", "3.0.0-ballot");
+    index.remove("hl7.fhir.us.missing", "1.0.0");
+    assertEquals("2.1.0", index.find("hl7.fhir.us.example", null));
+    assertNull(index.find("hl7.fhir.us.example", "3.0.0-ballot"));
+  }
+}
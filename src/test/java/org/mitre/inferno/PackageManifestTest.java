@@ -0,0 +1,41 @@
+package org.mitre.inferno;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.junit.jupiter.api.Test;
+
+class PackageManifestTest {
+
+  @Test
+  void readsPackageAndIndex() throws IOException {
+    PackageManifest manifest = PackageManifest.read(new File("igs/hl7.fhir.us.core-3.1.1.tgz"));
+    assertEquals("hl7.fhir.us.core", manifest.getId());
+    assertEquals("3.1.1", manifest.getVersion());
+    assertEquals("http://hl7.org/fhir/us/core", manifest.getCanonical());
+    assertTrue(manifest.getProfiles()
+        .contains("http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient"));
+    assertTrue(manifest.getDependencies().containsKey("hl7.fhir.r4.core"));
+  }
+
+  @Test
+  void describesUnpackedPackage() throws IOException {
+    File file = new File("igs/hl7.fhir.us.core-3.1.1.tgz");
+    NpmPackage npm;
+    try (InputStream in = new FileInputStream(file)) {
+      npm = NpmPackage.fromPackage(in);
+    }
+    PackageManifest manifest = PackageManifest.fromPackage(npm, file);
+    PackageManifest read = PackageManifest.read(file);
+    assertEquals(read.getId(), manifest.getId());
+    assertEquals(read.getVersion(), manifest.getVersion());
+    assertEquals(read.getProfiles(), manifest.getProfiles());
+    assertEquals(-1, read.getContentBytes());
+    assertTrue(manifest.getContentBytes() > file.length());
+  }
+}
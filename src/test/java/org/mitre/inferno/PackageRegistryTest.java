@@ -0,0 +1,170 @@
+package org.mitre.inferno;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import org.hl7.fhir.utilities.npm.PackageServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class PackageRegistryTest {
+  private File dir;
+  private File cacheFile;
+  private HttpServer packageServer;
+  private final AtomicInteger catalogRequests = new AtomicInteger();
+  private final List<PackageRegistry> registries = new ArrayList<>();
+  private volatile String catalog;
+  private volatile CountDownLatch catalogReleased = new CountDownLatch(0);
+
+  @BeforeEach
+  void setUp() throws IOException {
+    dir = Files.createTempDirectory("registry").toFile();
+    cacheFile = new File(dir, "package-registry.json");
+    packageServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    packageServer.createContext("/catalog", exchange -> {
+      catalogRequests.incrementAndGet();
+      try {
+        catalogReleased.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      byte[] body = catalog.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().add("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    packageServer.createContext("/down", exchange -> {
+      exchange.sendResponseHeaders(503, -1);
+      exchange.close();
+    });
+    packageServer.start();
+    catalog = catalog("example.a", "example.b");
+  }
+
+  @AfterEach
+  void cleanUp() throws IOException {
+    catalogReleased.countDown();
+    registries.forEach(PackageRegistry::stop);
+    packageServer.stop(0);
+    FileUtils.deleteDirectory(dir);
+  }
+
+  private static String catalog(String... ids) {
+    StringBuilder json = new StringBuilder("[");
+    for (String id : ids) {
+      if (json.length() > 1) {
+        json.append(", ");
+      }
+      json.append("{\"name\": \"").append(id).append("\", \"version\": \"1.0.0\", ")
+          .append("\"url\": \"http://example.org/").append(id).append("\"}");
+    }
+    return json.append("]").toString();
+  }
+
+  private PackageServer server() {
+    return new PackageServer("http://localhost:" + packageServer.getAddress().getPort());
+  }
+
+  private PackageServer unavailableServer() {
+    return new PackageServer("http://localhost:" + packageServer.getAddress().getPort() + "/down");
+  }
+
+  private PackageRegistry start(List<PackageServer> servers, long refreshMillis) {
+    PackageRegistry registry = new PackageRegistry(servers, cacheFile, refreshMillis);
+    registries.add(registry);
+    registry.start();
+    return registry;
+  }
+
+  private static void awaitPackages(PackageRegistry registry, Map<String, String> expected)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!registry.getPackages().equals(expected) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertEquals(expected, registry.getPackages());
+  }
+
+  private static Map<String, String> listing(String... ids) {
+    Map<String, String> listing = new LinkedHashMap<>();
+    for (String id : ids) {
+      listing.put(id, "http://example.org/" + id);
+    }
+    return listing;
+  }
+
+  @Test
+  void fetchesAndSavesFirstListing() throws Exception {
+    PackageRegistry registry = start(Collections.singletonList(server()), 0);
+    awaitPackages(registry, listing("example.a", "example.b"));
+    assertTrue(cacheFile.isFile());
+
+    // a new instance serves the saved listing without asking the server
+    catalogRequests.set(0);
+    PackageRegistry restarted = start(Collections.singletonList(server()), 0);
+    assertEquals(listing("example.a", "example.b"), restarted.getPackages());
+    assertEquals(0, catalogRequests.get());
+  }
+
+  @Test
+  void fetchesFirstListingInBackground() throws Exception {
+    catalogReleased = new CountDownLatch(1);
+    PackageRegistry registry = start(Collections.singletonList(server()), 0);
+    assertEquals(Collections.emptyMap(), registry.getPackages());
+
+    catalogReleased.countDown();
+    awaitPackages(registry, listing("example.a", "example.b"));
+  }
+
+  @Test
+  void servesSavedListingWhenServersAreUnavailable() throws Exception {
+    awaitPackages(start(Collections.singletonList(server()), 0), listing("example.a", "example.b"));
+
+    PackageRegistry registry = start(Collections.singletonList(unavailableServer()), 0);
+    registry.refresh();
+    assertEquals(listing("example.a", "example.b"), registry.getPackages());
+  }
+
+  @Test
+  void refreshKeepsPackagesOfUnavailableServers() throws IOException {
+    Files.write(cacheFile.toPath(), ("{\"example.a\": \"http://example.org/example.a\", "
+        + "\"example.old\": \"http://example.org/example.old\"}").getBytes(StandardCharsets.UTF_8));
+    PackageRegistry registry = start(Arrays.asList(server(), unavailableServer()), 0);
+    assertEquals(listing("example.a", "example.old"), registry.getPackages());
+
+    catalog = catalog("example.a", "example.c");
+    registry.refresh();
+    assertEquals(listing("example.a", "example.c", "example.old"), registry.getPackages());
+  }
+
+  @Test
+  void refreshesInBackground() throws Exception {
+    PackageRegistry registry = start(Collections.singletonList(server()), 100);
+    awaitPackages(registry, listing("example.a", "example.b"));
+
+    catalog = catalog("example.c");
+    awaitPackages(registry, listing("example.c"));
+    String saved = new String(Files.readAllBytes(cacheFile.toPath()), StandardCharsets.UTF_8);
+    assertTrue(saved.contains("example.c") && !saved.contains("example.a"), saved);
+  }
+}
@@ -0,0 +1,60 @@
+package org.mitre.inferno;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.junit.jupiter.api.Test;
+
+class ResourcePeekTest {
+
+  @Test
+  void peekJson() throws IOException {
+    ResourcePeek peek = ResourcePeek.of(loadFile("us_core_patient_example.json"), FhirFormat.JSON);
+    assertEquals("Patient", peek.getResourceType());
+    assertEquals(
+        Collections.singletonList("http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient"),
+        peek.getMetaProfiles()
+    );
+
+    peek = ResourcePeek.of(loadFile("patient_fixture.json"), FhirFormat.JSON);
+    assertEquals("Patient", peek.getResourceType());
+    assertTrue(peek.getMetaProfiles().isEmpty());
+  }
+
+  @Test
+  void peekXml() {
+    String xml = "<Patient xmlns=\"http://hl7.org/fhir\">"
+        + "<id value=\"example\"/>"
+        + "<meta>"
+        + "<profile value=\"http://example.org/a\"/>"
+        + "<profile value=\"http://example.org/b\"/>"
+        + "</meta>"
+        + "<active value=\"true\"/>"
+        + "</Patient>";
+    ResourcePeek peek = ResourcePeek.of(xml.getBytes(StandardCharsets.UTF_8), FhirFormat.XML);
+    assertEquals("Patient", peek.getResourceType());
+    assertEquals(
+        Arrays.asList("http://example.org/a", "http://example.org/b"),
+        peek.getMetaProfiles()
+    );
+  }
+
+  @Test
+  void peekInvalid() {
+    ResourcePeek peek = ResourcePeek.of("not json".getBytes(StandardCharsets.UTF_8),
+        FhirFormat.JSON);
+    assertNull(peek.getResourceType());
+    assertTrue(peek.getMetaProfiles().isEmpty());
+  }
+
+  byte[] loadFile(String fileName) throws IOException {
+    return IOUtils.toByteArray(getClass().getClassLoader().getResource(fileName));
+  }
+}
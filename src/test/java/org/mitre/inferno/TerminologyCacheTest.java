@@ -0,0 +1,172 @@
+package org.mitre.inferno;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TerminologyCacheTest {
+  private static final String OBSERVATION = "{\"resourceType\": \"Observation\", "
+      + "\"status\": \"final\", \"code\": {\"coding\": [{\"system\": \"http://loinc.org\", "
+      + "\"code\": \"8867-4\", \"display\": \"Heart rate\"}]}}";
+
+  private File cacheDir;
+  private File warmUpDir;
+  private HttpServer txServer;
+  private final List<String> txRequests = Collections.synchronizedList(new ArrayList<>());
+
+  @BeforeEach
+  void setUp() throws IOException {
+    cacheDir = Files.createTempDirectory("txcache").toFile();
+    warmUpDir = Files.createTempDirectory("txwarmup").toFile();
+    Files.write(new File(warmUpDir, "observation.json").toPath(),
+        OBSERVATION.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @AfterEach
+  void cleanUp() throws IOException {
+    System.clearProperty("TX_SERVER_URL");
+    System.clearProperty("TX_CACHE_DIR");
+    if (txServer != null) {
+      txServer.stop(0);
+    }
+    FileUtils.deleteDirectory(cacheDir);
+    FileUtils.deleteDirectory(warmUpDir);
+  }
+
+  @Test
+  void validatesOfflineFromWarmedUpCache() throws Exception {
+    // warm up the cache the way 'prepare' does, against a terminology server
+    startTxServer();
+    String txUrl = "http://localhost:" + txServer.getAddress().getPort();
+    System.setProperty("TX_SERVER_URL", txUrl);
+    System.setProperty("TX_CACHE_DIR", cacheDir.getPath());
+    Validator online = new Validator("./igs", true, txUrl);
+    App.warmUpTerminologyCache(online, warmUpDir.getPath());
+    assertTrue(txRequests.stream().anyMatch(r -> r.contains("$validate-code")),
+        String.join(",", txRequests));
+    OperationOutcome expected = validate(online);
+    online.close();
+    Map<String, String> cached = contents(cacheDir);
+    assertTrue(cached.keySet().stream().anyMatch(name -> name.contains("terminologyCapabilities")),
+        cached.keySet().toString());
+    assertTrue(cached.keySet().stream().anyMatch(name -> name.contains("capabilityStatement")),
+        cached.keySet().toString());
+
+    // then validate with the server gone, using nothing but what it said before
+    txServer.stop(0);
+    txServer = null;
+    txRequests.clear();
+    Validator offline = new Validator("./igs", true, null);
+    assertEquals(messages(expected), messages(validate(offline)));
+    offline.close();
+    assertTrue(txRequests.isEmpty());
+    assertEquals(cached, contents(cacheDir));
+
+    // without the cache, the code can't be checked offline
+    System.clearProperty("TX_CACHE_DIR");
+    Validator uncached = new Validator("./igs", true, null);
+    assertNotEquals(messages(expected), messages(validate(uncached)));
+    uncached.close();
+  }
+
+  private static Map<String, String> contents(File dir) throws IOException {
+    Map<String, String> contents = new TreeMap<>();
+    for (File file : dir.listFiles()) {
+      contents.put(file.getName(), FileUtils.readFileToString(file, StandardCharsets.UTF_8));
+    }
+    return contents;
+  }
+
+  private static OperationOutcome validate(Validator validator) {
+    return validator.validate(OBSERVATION.getBytes(StandardCharsets.UTF_8), new ArrayList<>());
+  }
+
+  private static List<String> messages(OperationOutcome oo) {
+    return oo.getIssue().stream()
+        .map(i -> i.getSeverity() + " " + i.getDetails().getText())
+        .sorted()
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Starts a terminology server that knows every code it is asked about. It advertises the
+   * features the validator requires of a terminology server today; if a newer validator requires
+   * more, it refuses this server, and the cache that replays what the server said, so this test
+   * fails rather than validation quietly going on without the cache.
+   */
+  private void startTxServer() throws IOException {
+    txServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    txServer.createContext("/", exchange -> {
+      String request = exchange.getRequestMethod() + " " + exchange.getRequestURI();
+      txRequests.add(request);
+      String body = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+      if (request.contains("mode=terminology")) {
+        respond(exchange, "{\"resourceType\": \"TerminologyCapabilities\", "
+            + "\"status\": \"active\", \"kind\": \"instance\", "
+            + "\"software\": {\"name\": \"stub\", \"version\": \"1.0.0\"}, "
+            + "\"codeSystem\": [{\"uri\": \"http://loinc.org\"}]}");
+      } else if (request.contains("/metadata")) {
+        respond(exchange, "{\"resourceType\": \"CapabilityStatement\", "
+            + "\"status\": \"active\", \"kind\": \"instance\", \"fhirVersion\": \"4.0.1\", "
+            + "\"software\": {\"name\": \"stub\", \"version\": \"1.0.0\"}, "
+            + "\"format\": [\"json\"], \"extension\": ["
+            + feature("http://hl7.org/fhir/uv/tx-tests/FeatureDefinition/test-version", "1.7.0")
+            + ", " + feature(
+                "http://hl7.org/fhir/uv/tx-ecosystem/FeatureDefinition/CodeSystemAsParameter",
+                "true")
+            + "]}");
+      } else if (request.contains("$validate-code")) {
+        respond(exchange, validCode());
+      } else {
+        txRequests.add("unexpected: " + body);
+        exchange.sendResponseHeaders(404, -1);
+        exchange.close();
+      }
+    });
+    txServer.start();
+  }
+
+  private static String feature(String definition, String value) {
+    return "{\"url\": \"http://hl7.org/fhir/uv/application-feature/StructureDefinition/feature\", "
+        + "\"extension\": [{\"url\": \"definition\", \"valueCanonical\": \"" + definition
+        + "\"}, {\"url\": \"value\", \"valueCode\": \"" + value + "\"}]}";
+  }
+
+  private static String validCode() {
+    return "{\"resourceType\": \"Parameters\", \"parameter\": ["
+        + "{\"name\": \"result\", \"valueBoolean\": true}, "
+        + "{\"name\": \"system\", \"valueUri\": \"http://loinc.org\"}, "
+        + "{\"name\": \"code\", \"valueCode\": \"8867-4\"}, "
+        + "{\"name\": \"display\", \"valueString\": \"Heart rate\"}]}";
+  }
+
+  private static void respond(HttpExchange exchange, String json) throws IOException {
+    byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+    exchange.sendResponseHeaders(200, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package org.mitre.inferno;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.hl7.fhir.r5.model.OperationOutcome.IssueType;
+import org.hl7.fhir.validation.ValidationEngine;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class ValidationEnginePoolTest {
+  private static Validator validator;
+
+  @BeforeAll
+  static void setUp() throws Exception {
+    System.setProperty("VALIDATOR_POOL_SIZE", "1");
+    try {
+      validator = new Validator("./igs", true);
+    } finally {
+      System.clearProperty("VALIDATOR_POOL_SIZE");
+    }
+  }
+
+  @AfterAll
+  static void cleanUp() {
+    validator.close();
+  }
+
+  @Test
+  void rejectsBorrowWhenEveryEngineIsBusy() throws Exception {
+    ValidationEnginePool pool =
+        new ValidationEnginePool(validator.primary(), 0, 1, 100, engine -> { });
+    ValidationEngine engine = pool.borrow();
+    assertEquals(0, pool.available());
+
+    long start = System.nanoTime();
+    assertThrows(ValidatorBusyException.class, pool::borrow);
+    assertTrue(System.nanoTime() - start >= 100_000_000L);
+
+    pool.release(engine);
+    assertSame(engine, pool.borrow());
+  }
+
+  @Test
+  void returnsEngineWhenValidationFails() {
+    // the engine throws for a type it doesn't know, which is reported in an OperationOutcome
+    OperationOutcome oo = validator.validate(
+        "{\"resourceType\": \"Unknown\"}".getBytes(StandardCharsets.UTF_8), new ArrayList<>());
+    assertEquals(IssueType.STRUCTURE, oo.getIssueFirstRep().getCode());
+    assertEquals(1L, validator.getEnginePoolStats().get("available"));
+
+    // the engine throws for a profile it doesn't know
+    byte[] organization = "{\"resourceType\": \"Organization\", \"name\": \"Example\"}"
+        .getBytes(StandardCharsets.UTF_8);
+    assertThrows(Error.class, () -> validator.validate(
+        organization, Arrays.asList("http://example.org/fhir/StructureDefinition/unknown")));
+    assertEquals(1L, validator.getEnginePoolStats().get("available"));
+
+    assertNotNull(validator.validate(organization, new ArrayList<>()));
+  }
+}
@@ -2,19 +2,41 @@ package org.mitre.inferno;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.hl7.fhir.r5.model.OperationOutcome;
 import org.hl7.fhir.r5.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r5.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.validation.ValidationEngine;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -22,6 +44,11 @@ import org.junit.jupiter.api.condition.DisabledIfEnvironmentVariable;
 import org.mitre.inferno.rest.IgResponse;
 
 public class ValidatorTest {
+  private static final String MINIMAL_PROFILE =
+      "http://example.org/fhir/minimal/StructureDefinition/minimal-organization";
+  private static final byte[] MINIMAL_ORGANIZATION =
+      "{\"resourceType\": \"Organization\", \"name\": \"Example\"}"
+          .getBytes(StandardCharsets.UTF_8);
   private static Validator validator;
 
   @BeforeEach
@@ -31,6 +58,7 @@ public class ValidatorTest {
 
   @AfterEach
   public void cleanUp() throws Exception {
+    validator.close();
     validator = null;
   }
 
@@ -104,6 +132,55 @@ public class ValidatorTest {
     }
   }
 
+  @Test
+  void validateAll() throws Exception {
+    byte[] example = loadFile("us_core_patient_example.json");
+    List<String> profiles =
+        Arrays.asList("http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient");
+    List<CompletableFuture<OperationOutcome>> results =
+        validator.validateAll(Arrays.asList(example, example, example), profiles);
+    assertEquals(3, results.size());
+    OperationOutcome expected = validator.validate(example, profiles);
+    for (CompletableFuture<OperationOutcome> result : results) {
+      assertEquals(expected.getIssue().size(), result.get().getIssue().size());
+    }
+  }
+
+  @Test
+  void validateWithTimeout() throws Exception {
+    byte[] example = loadFile("us_core_patient_example.json");
+    List<String> profiles =
+        Arrays.asList("http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient");
+    OperationOutcome expected = validator.validate(example, profiles);
+    OperationOutcome result = validator.validate(example, profiles, 60000);
+    assertEquals(expected.getIssue().size(), result.getIssue().size());
+    Map<String, Long> stats = validator.getEnginePoolStats();
+    assertEquals(stats.get("size"), stats.get("available"));
+    assertEquals(0L, stats.get("timeouts"));
+  }
+
+  @Test
+  void validatePastTimeout() throws Exception {
+    byte[] example = loadFile("us_core_patient_example.json");
+    List<String> profiles =
+        Arrays.asList("http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient");
+    OperationOutcome result = validator.validate(example, profiles, 1);
+    assertEquals(1, result.getIssue().size());
+    assertEquals(IssueType.TIMEOUT, result.getIssueFirstRep().getCode());
+    assertEquals(1L, validator.getEnginePoolStats().get("timeouts"));
+
+    // the abandoned validation runs on, and returns its engine to the pool when it finishes
+    long giveUp = System.nanoTime() + TimeUnit.MINUTES.toNanos(2);
+    while (validator.getEnginePoolStats().get("abandoned") > 0 && System.nanoTime() < giveUp) {
+      Thread.sleep(50);
+    }
+    Map<String, Long> stats = validator.getEnginePoolStats();
+    assertEquals(0L, stats.get("abandoned"));
+    assertEquals(stats.get("size"), stats.get("available"));
+    OperationOutcome expected = validator.validate(example, profiles);
+    assertTrue(expected.getIssue().stream().noneMatch(i -> i.getCode() == IssueType.TIMEOUT));
+  }
+
   @Test
   @DisabledIfEnvironmentVariable(named = "DISABLE_TX", matches = ".*")
   // This test is disabled when we don't use a terminology server to check codes.
@@ -115,6 +192,7 @@ public class ValidatorTest {
       List<String> medicationProfile = Arrays.asList("http://hl7.org/fhir/StructureDefinition/Medication");
 
       // first set display issues = errors, the default
+      validator.close();
       validator = new Validator("./igs", false);
 
       OperationOutcome oo = validator.validate(correct, medicationProfile);
@@ -124,6 +202,7 @@ public class ValidatorTest {
       assertHasValidationErrors(oo, true); // an error expected for the incorrect display
 
       // now set display issues = warnings
+      validator.close();
       validator = new Validator("./igs", true);
 
       oo = validator.validate(correct, medicationProfile);
@@ -152,6 +231,53 @@ public class ValidatorTest {
     }
   }
 
+  @Test
+  void getProfilesByIg() {
+    Map<String, List<String>> profilesByIg = validator.getProfilesByIg();
+    assertTrue(profilesByIg.get("hl7.fhir.us.core")
+        .contains("http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient"));
+    // served from the precomputed index until something new is loaded
+    assertSame(profilesByIg, validator.getProfilesByIg());
+  }
+
+  @Test
+  void restoresSnapshot() throws Exception {
+    File snapshot = File.createTempFile("validator", ".snapshot");
+    snapshot.delete();
+    // a saved registry listing, so both validators know the same IGs from the package servers
+    File registry = File.createTempFile("package-registry", ".json");
+    Files.write(registry.toPath(), "{\"example.listed\": \"http://example.org/listed\"}"
+        .getBytes(StandardCharsets.UTF_8));
+    System.setProperty("VALIDATOR_SNAPSHOT", snapshot.getPath());
+    System.setProperty("PACKAGE_REGISTRY_CACHE", registry.getPath());
+    try (Validator prepared = new Validator("./igs", true)) {
+      prepared.writeSnapshot();
+      assertTrue(snapshot.isFile());
+      try (Validator restored = new Validator("./igs", true)) {
+        assertEquals(prepared.getProfilesByIg(), restored.getProfilesByIg());
+        assertEquals(prepared.getKnownIGs(), restored.getKnownIGs());
+        assertEquals(prepared.getLoadedIgs(), restored.getLoadedIgs());
+        assertEquals(
+            new HashSet<>(prepared.primary().getContext().getLoadedPackages()),
+            new HashSet<>(restored.primary().getContext().getLoadedPackages()));
+        IgResponse ig = restored.loadIg("hl7.fhir.us.core", "3.1.1");
+        assertEquals(prepared.loadIg("hl7.fhir.us.core", "3.1.1").profiles, ig.profiles);
+        assertEquals(prepared.getProfilesByIg(), restored.getProfilesByIg());
+
+        byte[] example = loadFile("us_core_patient_example.json");
+        List<String> profiles =
+            Arrays.asList("http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient");
+        assertEquals(prepared.validate(example, profiles).getIssue().size(),
+            restored.validate(example, profiles).getIssue().size());
+      }
+    } finally {
+      System.clearProperty("VALIDATOR_SNAPSHOT");
+      System.clearProperty("PACKAGE_REGISTRY_CACHE");
+      snapshot.delete();
+      registry.delete();
+    }
+  }
+
   @Test
   void getKnownIGs() throws IOException {
     Set<String> knownIGs = validator.getKnownIGs().keySet();
@@ -261,6 +387,197 @@ public class ValidatorTest {
     assertTrue(profilesToLoad.stream().allMatch(this::isProfileLoaded));
   }
 
+  @Test
+  void loadsContentIntoCopyOfEngine() throws Exception {
+    ValidationEngine before = validator.primary();
+    validator.loadProfile(loadFile("profile_fixture.json"));
+    ValidationEngine afterProfile = validator.primary();
+    validator.loadPackage(loadFile("hl7.fhir.au.base.tgz"));
+    ValidationEngine afterPackage = validator.primary();
+
+    String profile = "http://hl7.org/fhir/StructureDefinition/blah";
+    String packageProfile = "http://hl7.org.au/fhir/StructureDefinition/au-address";
+    assertNull(before.getContext().fetchResource(StructureDefinition.class, profile));
+    assertNotNull(afterProfile.getContext().fetchResource(StructureDefinition.class, profile));
+    assertNull(afterProfile.getContext().fetchResource(StructureDefinition.class, packageProfile));
+    assertNotNull(
+        afterPackage.getContext().fetchResource(StructureDefinition.class, packageProfile));
+    assertNotSame(before.getIgLoader(), afterProfile.getIgLoader());
+    assertSame(afterPackage.getContext(), afterPackage.getIgLoader().getContext());
+  }
+
+  @Test
+  void evictsLeastRecentlyUsedIg() throws Exception {
+    System.setProperty("IG_MAX_LOADED", "1");
+    validator.close();
+    try {
+      validator = new Validator("./igs", true);
+    } finally {
+      System.clearProperty("IG_MAX_LOADED");
+    }
+    String profile = "http://hl7.org.au/fhir/StructureDefinition/au-organization";
+    validator.loadPackage(loadFile("hl7.fhir.au.base.tgz"));
+    validator.loadPackage(loadFile("example.fhir.minimal.tgz"));
+    assertFalse(isIgLoaded("hl7.fhir.au.base"));
+    assertTrue(isIgLoaded("example.fhir.minimal"));
+    assertNull(validator.primary().getContext().fetchResource(StructureDefinition.class, profile));
+
+    // validating against an evicted IG's profile loads it again, evicting the other IG
+    byte[] organization = "{\"resourceType\": \"Organization\", \"name\": \"Example\"}"
+        .getBytes(StandardCharsets.UTF_8);
+    OperationOutcome oo = validator.validate(organization, Arrays.asList(profile));
+    assertTrue(oo.getIssue().stream()
+        .noneMatch(i -> i.getDetails().getText().contains(profile)), () -> oo.getIssue()
+        .stream().map(i -> i.getDetails().getText()).collect(Collectors.joining(",")));
+    assertTrue(isIgLoaded("hl7.fhir.au.base"));
+    assertFalse(isIgLoaded("example.fhir.minimal"));
+    assertNotNull(
+        validator.primary().getContext().fetchResource(StructureDefinition.class, profile));
+    assertEquals(2L, validator.getIgBudgetStats().get("evictions"));
+
+    // uploading an evicted IG again loads the upload rather than the evicted copy
+    validator.loadPackage(loadFile("example.fhir.minimal.tgz"));
+    assertTrue(isIgLoaded("example.fhir.minimal"));
+    assertEquals(1L, validator.getIgBudgetStats().get("evicted"));
+  }
+
+  @Test
+  void cachesValidationResults() throws Exception {
+    replaceValidator("VALIDATION_CACHE_SIZE", "10");
+    // the IG isn't loaded yet, so the profile the resource claims can't be checked
+    byte[] organization = ("{\"resourceType\": \"Organization\", \"name\": \"Example\", "
+        + "\"meta\": {\"profile\": [\"" + MINIMAL_PROFILE + "\"]}}")
+        .getBytes(StandardCharsets.UTF_8);
+    List<String> profiles = Arrays.asList("http://hl7.org/fhir/StructureDefinition/Organization");
+    OperationOutcome first = validator.validate(organization, profiles);
+    OperationOutcome second = validator.validate(organization, profiles);
+    assertNotSame(first, second);
+    assertEquals(messages(first), messages(second));
+    assertEquals(1L, validator.getValidationCacheStats().get("hits"));
+    assertEquals(1L, validator.getValidationCacheStats().get("misses"));
+
+    // loading content makes earlier results stale, so they are never returned again
+    validator.loadPackage(loadFile("example.fhir.minimal.tgz"));
+    OperationOutcome afterLoad = validator.validate(organization, profiles);
+    assertNotEquals(messages(first), messages(afterLoad));
+    assertEquals(1L, validator.getValidationCacheStats().get("hits"));
+    assertEquals(2L, validator.getValidationCacheStats().get("misses"));
+    validator.loadProfile(loadFile("profile_fixture.json"));
+    validator.validate(organization, profiles);
+    assertEquals(3L, validator.getValidationCacheStats().get("misses"));
+    validator.validate(organization, profiles);
+    assertEquals(2L, validator.getValidationCacheStats().get("hits"));
+  }
+
+  @Test
+  void validationCacheSizeZeroTurnsCacheOff() throws Exception {
+    replaceValidator("VALIDATION_CACHE_SIZE", "0");
+    byte[] example = loadFile("us_core_patient_example.json");
+    List<String> profiles =
+        Arrays.asList("http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient");
+    validator.validate(example, profiles);
+    validator.validate(example, profiles);
+    assertTrue(validator.getValidationCacheStats().isEmpty());
+  }
+
+  /**
+   * Replaces the validator with one created with the given setting.
+   */
+  private void replaceValidator(String setting, String value) throws Exception {
+    validator.close();
+    System.setProperty(setting, value);
+    try {
+      validator = new Validator("./igs", true);
+    } finally {
+      System.clearProperty(setting);
+    }
+  }
+
+  private static String messages(OperationOutcome oo) {
+    return oo.getIssue().stream()
+        .map(i -> i.getSeverity() + " " + i.getDetails().getText())
+        .collect(Collectors.joining(","));
+  }
+
+  @Test
+  void loadsLazyIgOnceOnFirstUse() throws Exception {
+    File igDir = lazyIgDir();
+    try {
+      assertFalse(isIgLoaded("example.fhir.minimal"));
+      assertTrue(isProfileLoaded(MINIMAL_PROFILE));
+      long generation = validator.getEnginePoolStats().get("contentGeneration");
+
+      // concurrent first uses wait for a single load
+      int requests = 4;
+      ExecutorService executor = Executors.newFixedThreadPool(requests);
+      try {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<OperationOutcome>> results = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+          results.add(executor.submit(() -> {
+            start.await();
+            return validator.validate(MINIMAL_ORGANIZATION, Arrays.asList(MINIMAL_PROFILE));
+          }));
+        }
+        start.countDown();
+        for (Future<OperationOutcome> result : results) {
+          // the engine throws if it can't resolve the profile
+          assertNotNull(result.get(60, TimeUnit.SECONDS));
+        }
+      } finally {
+        executor.shutdown();
+      }
+      assertTrue(isIgLoaded("example.fhir.minimal"));
+      assertEquals(generation + 1, validator.getEnginePoolStats().get("contentGeneration"));
+    } finally {
+      FileUtils.deleteDirectory(igDir);
+    }
+  }
+
+  @Test
+  void retriesFailedLazyIgLoad() throws Exception {
+    File igDir = lazyIgDir();
+    try {
+      File ig = new File(igDir, "example.fhir.minimal.tgz");
+      File hidden = new File(igDir, "hidden");
+      assertTrue(ig.renameTo(hidden));
+      // the load fails, and the engine can't resolve the profile
+      Error failed = assertThrows(Error.class,
+          () -> validator.validate(MINIMAL_ORGANIZATION, Arrays.asList(MINIMAL_PROFILE)));
+      assertTrue(failed.getMessage().contains(MINIMAL_PROFILE), failed.getMessage());
+      assertFalse(isIgLoaded("example.fhir.minimal"));
+
+      assertTrue(hidden.renameTo(ig));
+      assertNotNull(validator.validate(MINIMAL_ORGANIZATION, Arrays.asList(MINIMAL_PROFILE)));
+      assertTrue(isIgLoaded("example.fhir.minimal"));
+    } finally {
+      FileUtils.deleteDirectory(igDir);
+    }
+  }
+
+  /**
+   * Replaces the validator with one that loads the minimal example IG on first use.
+   *
+   * @return the directory the IG is bundled in
+   */
+  private File lazyIgDir() throws Exception {
+    File igDir = Files.createTempDirectory("igs").toFile();
+    Files.write(new File(igDir, "example.fhir.minimal.tgz").toPath(),
+        loadFile("example.fhir.minimal.tgz"));
+    validator.close();
+    System.setProperty("LAZY_IG_LOADING", "true");
+    try {
+      validator = new Validator(igDir.getPath(), true);
+    } finally {
+      System.clearProperty("LAZY_IG_LOADING");
+    }
+    return igDir;
+  }
+
+  boolean isIgLoaded(String id) {
+    return validator.getLoadedIgs().stream().anyMatch(ig -> id.equals(ig.get("id")));
+  }
+
   boolean isProfileLoaded(String profile) {
     return validator
         .getStructures()
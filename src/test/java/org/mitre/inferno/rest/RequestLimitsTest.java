@@ -0,0 +1,93 @@
+package org.mitre.inferno.rest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static spark.Spark.awaitInitialization;
+import static spark.Spark.awaitStop;
+import static spark.Spark.get;
+import static spark.Spark.port;
+import static spark.Spark.post;
+import static spark.Spark.stop;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class RequestLimitsTest {
+  private static final HttpClient CLIENT = HttpClient.newHttpClient();
+  private static volatile CountDownLatch started;
+  private static volatile CountDownLatch release;
+
+  @BeforeAll
+  static void setUp() {
+    System.setProperty("HEAVY_REQUEST_LIMIT", "1");
+    port(0);
+    post("/validate", (req, res) -> {
+      started.countDown();
+      release.await(30, TimeUnit.SECONDS);
+      return "{}";
+    });
+    post("/validate/fail", (req, res) -> {
+      throw new IllegalStateException("failed");
+    });
+    get("/version", (req, res) -> "{}");
+    RequestLimits.getInstance();
+    awaitInitialization();
+  }
+
+  @AfterAll
+  static void cleanUp() {
+    System.clearProperty("HEAVY_REQUEST_LIMIT");
+    stop();
+    awaitStop();
+  }
+
+  private static HttpResponse<String> send(String method, String path) throws Exception {
+    return sendAsync(method, path).get(30, TimeUnit.SECONDS);
+  }
+
+  private static CompletableFuture<HttpResponse<String>> sendAsync(String method, String path) {
+    HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port() + path))
+        .method(method, HttpRequest.BodyPublishers.ofString("{}"))
+        .build();
+    return CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+  }
+
+  @Test
+  void rejectsHeavyRequestsOverLimit() throws Exception {
+    started = new CountDownLatch(1);
+    release = new CountDownLatch(1);
+    CompletableFuture<HttpResponse<String>> first = sendAsync("POST", "/validate");
+    assertTrue(started.await(30, TimeUnit.SECONDS));
+
+    HttpResponse<String> rejected = send("POST", "/validate");
+    assertEquals(503, rejected.statusCode());
+    assertEquals("1", rejected.headers().firstValue("Retry-After").orElse(null));
+    assertTrue(rejected.body().contains("\"resourceType\":\"OperationOutcome\""),
+        rejected.body());
+    // light requests have their own limit
+    assertEquals(200, send("GET", "/version").statusCode());
+
+    release.countDown();
+    assertEquals(200, first.get(30, TimeUnit.SECONDS).statusCode());
+
+    // the permit was released after the first request, and a rejection takes none
+    started = new CountDownLatch(1);
+    assertEquals(200, send("POST", "/validate").statusCode());
+  }
+
+  @Test
+  void releasesPermitWhenRequestFails() throws Exception {
+    assertEquals(500, send("POST", "/validate/fail").statusCode());
+    started = new CountDownLatch(1);
+    release = new CountDownLatch(0);
+    assertEquals(200, send("POST", "/validate").statusCode());
+  }
+}
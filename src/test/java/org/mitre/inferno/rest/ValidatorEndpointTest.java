@@ -0,0 +1,106 @@
+package org.mitre.inferno.rest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static spark.Spark.awaitInitialization;
+import static spark.Spark.awaitStop;
+import static spark.Spark.port;
+import static spark.Spark.stop;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.mitre.inferno.Validator;
+
+class ValidatorEndpointTest {
+  private static final HttpClient CLIENT = HttpClient.newHttpClient();
+  private static final String VALID = "{\"resourceType\":\"Patient\",\"id\":\"a\"}";
+  private static final String INVALID = "{\"resourceType\":\"Patient\",\"gender\":\"nope\"}";
+  private static Validator validator;
+
+  @BeforeAll
+  static void setUp() throws Exception {
+    // one batch thread, so the outcomes have to be written in turn
+    System.setProperty("VALIDATOR_POOL_SIZE", "2");
+    try {
+      port(0);
+      validator = new Validator("./igs", true);
+      ValidatorEndpoint.getInstance(validator);
+      awaitInitialization();
+    } finally {
+      System.clearProperty("VALIDATOR_POOL_SIZE");
+    }
+  }
+
+  @AfterAll
+  static void cleanUp() {
+    stop();
+    awaitStop();
+    validator.close();
+  }
+
+  private static HttpResponse<String> postBatch(String contentType, String body)
+      throws Exception {
+    HttpRequest request = HttpRequest
+        .newBuilder(URI.create("http://localhost:" + port() + "/validate/batch"))
+        .header("Content-Type", contentType)
+        .POST(HttpRequest.BodyPublishers.ofString(body))
+        .build();
+    return CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+  }
+
+  private static void assertOutcomes(HttpResponse<String> response, boolean... errors) {
+    assertEquals(200, response.statusCode(), response.body());
+    assertTrue(response.headers().firstValue("Content-Type").orElse("").contains("ndjson"));
+    String[] lines = response.body().split("\n");
+    assertEquals(errors.length, lines.length, response.body());
+    for (int i = 0; i < lines.length; i++) {
+      assertTrue(lines[i].contains("\"resourceType\":\"OperationOutcome\""), lines[i]);
+      assertEquals(errors[i], lines[i].contains("\"severity\":\"error\""), lines[i]);
+    }
+  }
+
+  @Test
+  void validatesNdjsonInOrder() throws Exception {
+    List<String> lines = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      lines.add(VALID);
+      lines.add(INVALID);
+      lines.add("");
+    }
+    HttpResponse<String> response =
+        postBatch("application/fhir+ndjson", String.join("\n", lines));
+    assertOutcomes(response, false, true, false, true, false, true);
+  }
+
+  @Test
+  void validatesBundleEntriesInOrder() throws Exception {
+    String bundle = "{\"resourceType\":\"Bundle\",\"type\":\"collection\",\"entry\":["
+        + "{\"resource\":" + INVALID + "},"
+        + "{\"resource\":" + VALID + "},"
+        + "{\"resource\":" + INVALID + "}]}";
+    assertOutcomes(postBatch("application/fhir+json", bundle), true, false, true);
+  }
+
+  @Test
+  void rejectsMalformedBody() throws Exception {
+    String[] bodies = {
+        "not json",
+        "{\"resourceType\":\"Patient\"}",
+        "{\"resourceType\":\"Bundle\",\"entry\":[1]}",
+        "{\"resourceType\":\"Bundle\",\"entry\":{}}"
+    };
+    for (String body : bodies) {
+      HttpResponse<String> response = postBatch("application/fhir+json", body);
+      assertEquals(400, response.statusCode(), body);
+      assertTrue(response.headers().firstValue("Content-Type").orElse("").contains("fhir+json"));
+      assertTrue(response.body().contains("\"resourceType\":\"OperationOutcome\""), body);
+    }
+  }
+}
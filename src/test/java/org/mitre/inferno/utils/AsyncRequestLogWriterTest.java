@@ -0,0 +1,52 @@
+package org.mitre.inferno.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class AsyncRequestLogWriterTest {
+
+  @Test
+  void writesInOrder() throws InterruptedException {
+    List<String> lines = new CopyOnWriteArrayList<>();
+    CountDownLatch written = new CountDownLatch(3);
+    AsyncRequestLogWriter writer = new AsyncRequestLogWriter(line -> {
+      lines.add(line);
+      written.countDown();
+    }, 10, false);
+    writer.write("a");
+    writer.write("b");
+    writer.write("c");
+
+    written.await(5, TimeUnit.SECONDS);
+    assertEquals(List.of("a", "b", "c"), lines);
+    assertEquals(0, writer.getDropped());
+  }
+
+  @Test
+  void dropsLinesWhenFull() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch started = new CountDownLatch(1);
+    AsyncRequestLogWriter writer = new AsyncRequestLogWriter(line -> {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, 2, false);
+    // the first line is taken by the background thread, which then waits
+    writer.write("first");
+    started.await(5, TimeUnit.SECONDS);
+    writer.write("a");
+    writer.write("b");
+    writer.write("c");
+    release.countDown();
+
+    assertEquals(1, writer.getDropped());
+  }
+}
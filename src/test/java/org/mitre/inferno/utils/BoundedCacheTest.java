@@ -0,0 +1,37 @@
+package org.mitre.inferno.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+class BoundedCacheTest {
+
+  @Test
+  void evictsLeastRecentlyUsed() {
+    BoundedCache<String, String> cache = new BoundedCache<>(2, 0);
+    cache.put("a", "A");
+    cache.put("b", "B");
+    assertEquals("A", cache.get("a"));
+    cache.put("c", "C");
+
+    assertNull(cache.get("b"));
+    assertEquals("A", cache.get("a"));
+    assertEquals("C", cache.get("c"));
+    assertEquals(2, cache.size());
+    assertEquals(3, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(1, cache.getEvictions());
+  }
+
+  @Test
+  void expiresEntries() throws InterruptedException {
+    BoundedCache<String, String> cache = new BoundedCache<>(10, 1);
+    cache.put("a", "A");
+    Thread.sleep(10);
+
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+    assertEquals(1, cache.getEvictions());
+  }
+}
@@ -0,0 +1,97 @@
+package org.mitre.inferno.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class EmbeddedJettyServerFactoryTest {
+
+  @AfterEach
+  void cleanUp() {
+    System.clearProperty("JETTY_MAX_THREADS");
+    System.clearProperty("JETTY_MIN_THREADS");
+    System.clearProperty("JETTY_IDLE_TIMEOUT_MS");
+    System.clearProperty("JETTY_QUEUE_LIMIT");
+  }
+
+  private static QueuedThreadPool createPool() {
+    Server server = new EmbeddedJettyServerFactory(new EmbeddedJettyFactoryConstructor(null))
+        .create(0, 0, 0);
+    return (QueuedThreadPool) server.getThreadPool();
+  }
+
+  @Test
+  void sizesThreadPoolFromEnvironment() {
+    System.setProperty("JETTY_MAX_THREADS", "12");
+    System.setProperty("JETTY_MIN_THREADS", "3");
+    System.setProperty("JETTY_IDLE_TIMEOUT_MS", "5000");
+    QueuedThreadPool pool = createPool();
+    assertEquals(12, pool.getMaxThreads());
+    assertEquals(3, pool.getMinThreads());
+    assertEquals(5000, pool.getIdleTimeout());
+  }
+
+  @Test
+  void rejectsJobsBeyondQueueLimit() throws Exception {
+    System.setProperty("JETTY_MAX_THREADS", "1");
+    System.setProperty("JETTY_MIN_THREADS", "1");
+    System.setProperty("JETTY_QUEUE_LIMIT", "2");
+    QueuedThreadPool pool = createPool();
+    pool.setReservedThreads(0);
+    pool.start();
+    CountDownLatch running = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    try {
+      // occupy the only thread, so further jobs have to wait in the queue
+      pool.execute(() -> {
+        running.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      assertTrue(running.await(10, TimeUnit.SECONDS));
+      pool.execute(() -> { });
+      pool.execute(() -> { });
+      assertEquals(2, pool.getQueueSize());
+      assertThrows(RejectedExecutionException.class, () -> pool.execute(() -> { }));
+    } finally {
+      release.countDown();
+      pool.stop();
+    }
+  }
+
+  @Test
+  void queueIsUnboundedByDefault() throws Exception {
+    System.setProperty("JETTY_MAX_THREADS", "1");
+    System.setProperty("JETTY_MIN_THREADS", "1");
+    QueuedThreadPool pool = createPool();
+    pool.setReservedThreads(0);
+    pool.start();
+    CountDownLatch release = new CountDownLatch(1);
+    try {
+      pool.execute(() -> {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      for (int i = 0; i < 2000; i++) {
+        pool.execute(() -> { });
+      }
+    } finally {
+      release.countDown();
+      pool.stop();
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package org.mitre.inferno.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class MetricsTest {
+
+  @Test
+  void scrapesHistograms() {
+    Metrics metrics = Metrics.getInstance();
+    LatencyHistogram histogram = metrics.histogram("test_duration_seconds", "A test histogram",
+        "route", "/a\"b");
+    histogram.record(TimeUnit.MICROSECONDS.toNanos(500));
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(20));
+    histogram.record(TimeUnit.MINUTES.toNanos(2));
+    assertEquals(3, histogram.getCount());
+
+    String scrape = metrics.scrape();
+    assertTrue(scrape.contains("# TYPE test_duration_seconds histogram\n"));
+    assertTrue(scrape.contains("test_duration_seconds_bucket{route=\"/a\\\"b\",le=\"0.001\"} 1\n"));
+    assertTrue(scrape.contains("test_duration_seconds_bucket{route=\"/a\\\"b\",le=\"0.025\"} 2\n"));
+    assertTrue(scrape.contains("test_duration_seconds_bucket{route=\"/a\\\"b\",le=\"+Inf\"} 3\n"));
+    assertTrue(scrape.contains("test_duration_seconds_count{route=\"/a\\\"b\"} 3\n"));
+  }
+
+  @Test
+  void scrapesGauges() {
+    Metrics metrics = Metrics.getInstance();
+    metrics.gauge("test_gauge", "A test gauge", () -> 42);
+    metrics.gauge("test_broken_gauge", "A gauge that can't be read", () -> {
+      throw new IllegalStateException();
+    });
+
+    String scrape = metrics.scrape();
+    assertTrue(scrape.contains("# TYPE test_gauge gauge\ntest_gauge 42\n"));
+    assertTrue(scrape.contains("# TYPE test_broken_gauge gauge\n# HELP"));
+  }
+}